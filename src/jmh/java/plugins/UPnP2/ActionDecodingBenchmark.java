@@ -0,0 +1,138 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.message.StreamResponseMessage;
+import org.fourthline.cling.model.message.UpnpResponse;
+import org.fourthline.cling.model.message.control.IncomingActionResponseMessage;
+import org.fourthline.cling.model.meta.Action;
+import org.fourthline.cling.model.meta.LocalService;
+import org.fourthline.cling.transport.impl.SOAPActionProcessorImpl;
+import org.fourthline.cling.transport.spi.SOAPActionProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import plugins.UPnP2.actions.GetCommonLinkProperties;
+import plugins.UPnP2.actions.GetLinkLayerMaxBitRates;
+import plugins.UPnP2.sim.SimulatedGateway;
+import plugins.UPnP2.sim.SimulatedWANCommonInterfaceConfig;
+import plugins.UPnP2.sim.SimulatedWANPPPConnection;
+
+/**
+ * Decoding of action responses, from the SOAP body as a gateway sends it through Cling's
+ * {@link SOAPActionProcessor} to the typed values the {@code actions} callbacks hand on
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ActionDecodingBenchmark {
+
+    @State(Scope.Thread)
+    public static class Responses {
+
+        final SOAPActionProcessor soapActionProcessor = new SOAPActionProcessorImpl();
+        Action commonLinkPropertiesAction;
+        Action linkLayerMaxBitRatesAction;
+        IncomingActionResponseMessage commonLinkProperties;
+        IncomingActionResponseMessage linkLayerMaxBitRates;
+        GetCommonLinkProperties commonLinkPropertiesCallback;
+        GetLinkLayerMaxBitRates linkLayerMaxBitRatesCallback;
+        long sink;
+
+        @Setup(Level.Trial)
+        @SuppressWarnings("unchecked")
+        public void setUp() throws Exception {
+            LocalService common = SimulatedGateway.bind(SimulatedWANCommonInterfaceConfig.class);
+            commonLinkPropertiesAction = common.getAction("GetCommonLinkProperties");
+            commonLinkProperties = response(common, "GetCommonLinkProperties",
+                    "<NewWANAccessType>Ethernet</NewWANAccessType>" +
+                    "<NewLayer1UpstreamMaxBitRate>20000000</NewLayer1UpstreamMaxBitRate>" +
+                    "<NewLayer1DownstreamMaxBitRate>100000000</NewLayer1DownstreamMaxBitRate>" +
+                    "<NewPhysicalLinkStatus>Up</NewPhysicalLinkStatus>");
+            commonLinkPropertiesCallback = new GetCommonLinkProperties(common) {
+                @Override
+                protected void success(int newUpstreamMaxBitRate, int newDownstreamMaxBitRate) {
+                    sink += newUpstreamMaxBitRate + newDownstreamMaxBitRate;
+                }
+
+                @Override
+                public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                    String defaultMsg) {
+                }
+            };
+
+            LocalService ppp = SimulatedGateway.bind(SimulatedWANPPPConnection.class);
+            linkLayerMaxBitRatesAction = ppp.getAction("GetLinkLayerMaxBitRates");
+            linkLayerMaxBitRates = response(ppp, "GetLinkLayerMaxBitRates",
+                    "<NewUpstreamMaxBitRate>1000000</NewUpstreamMaxBitRate>" +
+                    "<NewDownstreamMaxBitRate>16000000</NewDownstreamMaxBitRate>");
+            linkLayerMaxBitRatesCallback = new GetLinkLayerMaxBitRates(ppp) {
+                @Override
+                protected void success(int newUpstreamMaxBitRate, int newDownstreamMaxBitRate) {
+                    sink += newUpstreamMaxBitRate + newDownstreamMaxBitRate;
+                }
+
+                @Override
+                public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                    String defaultMsg) {
+                }
+            };
+        }
+
+        /**
+         * A response as a gateway sends it
+         */
+        private static IncomingActionResponseMessage response(LocalService service,
+                                                              String action, String outputs) {
+            return new IncomingActionResponseMessage(new StreamResponseMessage(
+                    "<?xml version=\"1.0\"?>" +
+                    "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" " +
+                    "s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">" +
+                    "<s:Body><u:" + action + "Response xmlns:u=\"" +
+                    service.getServiceType() + "\">" + outputs + "</u:" + action +
+                    "Response></s:Body></s:Envelope>"));
+        }
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public long getCommonLinkProperties(Responses state) {
+        ActionInvocation invocation = new ActionInvocation(state.commonLinkPropertiesAction);
+        state.soapActionProcessor.readBody(state.commonLinkProperties, invocation);
+        state.commonLinkPropertiesCallback.success(invocation);
+        return state.sink;
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public long getLinkLayerMaxBitRates(Responses state) {
+        ActionInvocation invocation = new ActionInvocation(state.linkLayerMaxBitRatesAction);
+        state.soapActionProcessor.readBody(state.linkLayerMaxBitRates, invocation);
+        state.linkLayerMaxBitRatesCallback.success(invocation);
+        return state.sink;
+    }
+
+}
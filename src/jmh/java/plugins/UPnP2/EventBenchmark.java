@@ -0,0 +1,88 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.state.StateVariableValue;
+import org.fourthline.cling.model.types.InvalidValueException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handling of GENA events from a connection service, with the same external IP over and over
+ * and with an IP which changes on every event
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EventBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Events {
+
+        PluginHarness harness;
+        Service connectionService;
+        Map<String, StateVariableValue> first;
+        Map<String, StateVariableValue> second;
+        boolean flip;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            harness = new PluginHarness(1);
+            connectionService = harness.plugin.getGateways().all().iterator().next()
+                    .getConnectionService();
+            first = values("203.0.113.7");
+            second = values("203.0.113.8");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            harness.stop();
+        }
+
+        @SuppressWarnings("unchecked")
+        private Map<String, StateVariableValue> values(String externalIP)
+                throws InvalidValueException {
+            return Collections.singletonMap("ExternalIPAddress", new StateVariableValue(
+                    connectionService.getStateVariable("ExternalIPAddress"), externalIP));
+        }
+    }
+
+    @Benchmark
+    public void unchanged(Events state) {
+        state.harness.plugin.handleEvent(state.connectionService, state.first);
+    }
+
+    @Benchmark
+    public void changed(Events state) {
+        state.flip = !state.flip;
+        state.harness.plugin.handleEvent(state.connectionService,
+                state.flip ? state.first : state.second);
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+import freenet.pluginmanager.DetectedIP;
+
+/**
+ * {@link UPnP2#getAddress()} right after the gateways were found, and once it has answered
+ */
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ExternalIPBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Warm {
+
+        @Param({"1", "8"})
+        int gateways;
+
+        PluginHarness harness;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            harness = new PluginHarness(gateways);
+            harness.plugin.getAddress();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            harness.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cold {
+
+        @Param({"1", "8"})
+        int gateways;
+
+        PluginHarness harness;
+
+        @Setup(Level.Invocation)
+        public void setUp() throws Exception {
+            harness = new PluginHarness(gateways);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            harness.stop();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public DetectedIP[] warm(Warm state) {
+        return state.harness.plugin.getAddress();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    public DetectedIP[] cold(Cold state) {
+        return state.harness.plugin.getAddress();
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import freenet.pluginmanager.ForwardPort;
+
+/**
+ * Port mapping through {@link UPnP2#onChangePublicPorts}, from scratch and when every mapping is
+ * already in place. Both wait for all statuses to be reported.
+ */
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PortMappingBenchmark {
+
+    @State(Scope.Thread)
+    public static class Fresh {
+
+        @Param({"1", "8", "64"})
+        int ports;
+
+        @Param({"1", "2", "8"})
+        int gateways;
+
+        PluginHarness harness;
+        Set<ForwardPort> forwardPorts;
+
+        @Setup(Level.Invocation)
+        public void setUp() throws Exception {
+            harness = new PluginHarness(gateways);
+            forwardPorts = PluginHarness.forwardPorts(ports);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            harness.stop();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Mapped {
+
+        @Param({"1", "8", "64"})
+        int ports;
+
+        @Param({"1", "2", "8"})
+        int gateways;
+
+        PluginHarness harness;
+        Set<ForwardPort> forwardPorts;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            harness = new PluginHarness(gateways);
+            forwardPorts = PluginHarness.forwardPorts(ports);
+
+            PluginHarness.AwaitingCallback cb =
+                    new PluginHarness.AwaitingCallback(ports * gateways);
+            harness.plugin.onChangePublicPorts(forwardPorts, cb);
+            cb.await();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            harness.stop();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    public Object fresh(Fresh state) throws InterruptedException {
+        PluginHarness.AwaitingCallback cb =
+                new PluginHarness.AwaitingCallback(state.ports * state.gateways);
+        state.harness.plugin.onChangePublicPorts(state.forwardPorts, cb);
+        cb.await();
+        return cb.statuses;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public Object unchanged(Mapped state) throws InterruptedException {
+        PluginHarness.AwaitingCallback cb =
+                new PluginHarness.AwaitingCallback(state.ports * state.gateways);
+        state.harness.plugin.onChangePublicPorts(state.forwardPorts, cb);
+        cb.await();
+        return cb.statuses;
+    }
+
+}
@@ -0,0 +1,270 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.model.state.StateVariableValue;
+import org.fourthline.cling.model.types.UDN;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import freenet.support.Logger;
+import freenet.support.Ticker;
+
+/**
+ * Turns the GENA events of connection services, and the values polled from those whose events
+ * can't be relied on, into external IP and connection status changes.
+ * Values equal to the last one seen of an uplink are dropped as they arrive, which is all most
+ * events cost. The rest is coalesced for {@code delay} ms, so a burst from a reconnecting router
+ * is handled once with its last values, off Cling's event thread. Addresses are only taken as
+ * literals and never resolved.
+ */
+class EventPipeline {
+
+    static final String EXTERNAL_IP_ADDRESS = "ExternalIPAddress";
+    static final String CONNECTION_STATUS = "ConnectionStatus";
+    static final String CONNECTED = "Connected";
+
+    interface Handler {
+
+        /**
+         * @param address A valid public address
+         * @return Whether it differs from the one known before
+         */
+        boolean externalIP(UDN uplink, InetAddress address);
+
+        /**
+         * @param previous Status handled last, or null for the first one
+         */
+        void connectionStatus(UDN uplink, String previous, String status);
+
+        /**
+         * Called once after a batch of events which changed at least one external IP
+         */
+        void externalIPsChanged();
+    }
+
+    private final Ticker ticker;
+    private final long delay;
+    private final Handler handler;
+
+    /**
+     * Last values seen of each uplink, to drop repeats
+     */
+    private final ConcurrentHashMap<UDN, String> lastIPs = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<UDN, String> lastStatuses = new ConcurrentHashMap<>();
+    /**
+     * Changed values waiting for the next flush, the latest of each uplink
+     */
+    private final ConcurrentHashMap<UDN, String> pendingIPs = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<UDN, String> pendingStatuses = new ConcurrentHashMap<>();
+    /**
+     * Statuses handed to the handler last
+     */
+    private final ConcurrentHashMap<UDN, String> handledStatuses = new ConcurrentHashMap<>();
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param delay Milliseconds changes are coalesced for, or 0 to handle them on the event
+     *              thread
+     */
+    EventPipeline(Ticker ticker, long delay, Handler handler) {
+        this.ticker = ticker;
+        this.delay = delay;
+        this.handler = handler;
+    }
+
+    /**
+     * Take the state variables of an event. This never blocks.
+     *
+     * @return Whether any value differs from the last one seen
+     */
+    boolean submit(UDN uplink, Map<String, ? extends StateVariableValue> values) {
+        return submit(uplink, valueOf(values.get(EXTERNAL_IP_ADDRESS)),
+                valueOf(values.get(CONNECTION_STATUS)));
+    }
+
+    /**
+     * Take values which were polled rather than evented
+     *
+     * @param externalIP Null if unknown
+     * @param status     Null if unknown
+     * @return Whether any value differs from the last one seen
+     */
+    boolean submit(UDN uplink, String externalIP, String status) {
+        boolean changed = offer(uplink, externalIP, lastIPs, pendingIPs);
+        changed |= offer(uplink, status, lastStatuses, pendingStatuses);
+        if (!changed) {
+            return false;
+        }
+
+        if (delay <= 0) {
+            flush();
+        } else {
+            ticker.queueTimedJob(flushRunnable, "UPnP2 events", delay, false, true);
+        }
+        return true;
+    }
+
+    /**
+     * Drop what was seen of an uplink, e.g. because its gateway went away. Its next event is
+     * handled even if it repeats the last one.
+     */
+    void forget(UDN uplink) {
+        lastIPs.remove(uplink);
+        lastStatuses.remove(uplink);
+        pendingIPs.remove(uplink);
+        pendingStatuses.remove(uplink);
+        handledStatuses.remove(uplink);
+    }
+
+    /**
+     * @return Whether the value is new and was queued
+     */
+    private static boolean offer(UDN uplink, String value, ConcurrentHashMap<UDN, String> last,
+                                 ConcurrentHashMap<UDN, String> pending) {
+        if (value == null || value.equals(last.put(uplink, value))) {
+            return false;
+        }
+        pending.put(uplink, value);
+        return true;
+    }
+
+    private static String valueOf(StateVariableValue value) {
+        return value == null || value.getValue() == null ? null : value.getValue().toString();
+    }
+
+    private void flush() {
+        for (UDN uplink : pendingStatuses.keySet()) {
+            String status = pendingStatuses.remove(uplink);
+            if (status != null) {
+                handler.connectionStatus(uplink, handledStatuses.put(uplink, status), status);
+            }
+        }
+
+        boolean changed = false;
+        for (UDN uplink : pendingIPs.keySet()) {
+            String ip = pendingIPs.remove(uplink);
+            if (ip == null) {
+                continue;
+            }
+            InetAddress address = parseLiteral(ip);
+            if (address == null) {
+                Logger.warning(this, "Ignoring external IP which isn't an address: " + ip);
+                continue;
+            }
+            changed |= handler.externalIP(uplink, address);
+        }
+
+        if (changed) {
+            handler.externalIPsChanged();
+        }
+    }
+
+    /**
+     * Parse an IPv4 or IPv6 address literal. Unlike {@link InetAddress#getByName} this never
+     * falls back to a DNS lookup.
+     *
+     * @return The address, or null if it isn't a literal
+     */
+    static InetAddress parseLiteral(String literal) {
+        literal = literal.trim();
+        if (literal.isEmpty()) {
+            return null;
+        }
+
+        try {
+            if (literal.indexOf(':') >= 0) {
+                // getByName only skips DNS when given something that looks like an IPv6 literal
+                return isIPv6Literal(literal) ? InetAddress.getByName(literal) : null;
+            }
+
+            String[] parts = literal.split("\\.", -1);
+            if (parts.length != 4) {
+                return null;
+            }
+            byte[] bytes = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                String part = parts[i];
+                if (part.isEmpty() || part.length() > 3) {
+                    return null;
+                }
+                int value = 0;
+                for (int j = 0; j < part.length(); j++) {
+                    char c = part.charAt(j);
+                    if (c < '0' || c > '9') {
+                        return null;
+                    }
+                    value = value * 10 + (c - '0');
+                }
+                if (value > 255) {
+                    return null;
+                }
+                bytes[i] = (byte) value;
+            }
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return Whether a string has nothing but hex digits, colons and dots, followed by an
+     * optional %scope made of letters, digits, dots, dashes and underscores
+     */
+    private static boolean isIPv6Literal(String literal) {
+        int percent = literal.indexOf('%');
+        String address = percent < 0 ? literal : literal.substring(0, percent);
+        if (address.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            boolean hex = (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f')
+                    || (c >= 'A' && c <= 'F');
+            if (!hex && c != ':' && c != '.') {
+                return false;
+            }
+        }
+        if (percent < 0) {
+            return true;
+        }
+        String scope = literal.substring(percent + 1);
+        if (scope.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < scope.length(); i++) {
+            char c = scope.charAt(i);
+            if (!(c < 128 && Character.isLetterOrDigit(c)) && c != '.' && c != '-'
+                    && c != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,360 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UDN;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import freenet.support.HTMLEncoder;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+import plugins.UPnP2.actions.GetStatusInfo;
+
+/**
+ * Tracks how far the GENA eventing of each uplink's connection service can be relied on, and
+ * polls GetExternalIPAddress and GetStatusInfo where it can't. The poll interval starts short,
+ * doubles while nothing changes and drops back once something does. Uplinks whose events
+ * arrive are only checked rarely, and fall back to polling when such a check finds a change no
+ * event reported. They are trusted again once an event reports a change, or after
+ * {@link #RECOVERY_POLLS} polls in a row found nothing new.
+ */
+class EventingMonitor {
+
+    enum Eventing {
+        /**
+         * Subscribed, and no change went unreported
+         */
+        HEALTHY,
+        /**
+         * Subscribed, but renewals failed or changes went unreported
+         */
+        FLAKY,
+        /**
+         * Not subscribed
+         */
+        ABSENT
+    }
+
+    /**
+     * Milliseconds between polls right after a change, and at first
+     */
+    private static final long MIN_POLL_INTERVAL = Long.getLong("plugins.UPnP2.minPollInterval",
+            TimeUnit.SECONDS.toMillis(30));
+    /**
+     * Milliseconds between polls once nothing changes for a while
+     */
+    private static final long MAX_POLL_INTERVAL = Long.getLong("plugins.UPnP2.maxPollInterval",
+            TimeUnit.MINUTES.toMillis(10));
+    /**
+     * Milliseconds between checks of uplinks with healthy eventing
+     */
+    private static final long HEALTHY_POLL_INTERVAL = Long.getLong(
+            "plugins.UPnP2.healthyPollInterval", TimeUnit.MINUTES.toMillis(30));
+    /**
+     * Milliseconds between attempts to subscribe again to uplinks without a subscription
+     */
+    private static final long RESUBSCRIBE_INTERVAL = Long.getLong(
+            "plugins.UPnP2.resubscribeInterval", TimeUnit.MINUTES.toMillis(30));
+    /**
+     * Polls in a row which found nothing new after which flaky eventing is trusted again. The
+     * events which would have proved it were dropped as duplicates of what the polls found.
+     */
+    private static final int RECOVERY_POLLS = Integer.getInteger(
+            "plugins.UPnP2.recoveryPolls", 5);
+
+    interface Handler {
+
+        /**
+         * Take polled values
+         *
+         * @param externalIP Null if unknown
+         * @param status     Null if unknown
+         * @return Whether any value differs from the last one seen
+         */
+        boolean polled(UDN uplink, String externalIP, String status);
+
+        /**
+         * Replace the subscription to a connection service
+         */
+        void resubscribe(Service connectionService);
+    }
+
+    private class Uplink implements Runnable {
+        final UDN uplink;
+        final Service service;
+        Eventing eventing = Eventing.ABSENT;
+        long interval = MIN_POLL_INTERVAL;
+        /**
+         * {@link System#nanoTime()} of the last subscription attempt
+         */
+        long subscribedAt = System.nanoTime();
+        /**
+         * Whether a poll finished, so the next ones can tell what changed since
+         */
+        boolean polled;
+        /**
+         * Polls in a row which found nothing new while the eventing was flaky
+         */
+        int quietPolls;
+
+        Uplink(Service service) {
+            this.uplink = Gateway.uplinkOf(service);
+            this.service = service;
+        }
+
+        long getDelay() {
+            return eventing == Eventing.HEALTHY ? HEALTHY_POLL_INTERVAL : interval;
+        }
+
+        @Override
+        public void run() {
+            poll(this);
+        }
+    }
+
+    private final GatewayClient client;
+    private final Ticker ticker;
+    private final Handler handler;
+
+    private final ConcurrentHashMap<UDN, Uplink> uplinks = new ConcurrentHashMap<>();
+
+    EventingMonitor(GatewayClient client, Ticker ticker, Handler handler) {
+        this.client = client;
+        this.ticker = ticker;
+        this.handler = handler;
+    }
+
+    /**
+     * Start tracking a connection service which is being subscribed to
+     */
+    void add(Service connectionService) {
+        Uplink uplink = new Uplink(connectionService);
+        Uplink previous = uplinks.put(uplink.uplink, uplink);
+        if (previous != null) {
+            ticker.removeQueuedJob(previous);
+        }
+        schedule(uplink);
+    }
+
+    void forget(UDN uplink) {
+        Uplink removed = uplinks.remove(uplink);
+        if (removed != null) {
+            ticker.removeQueuedJob(removed);
+        }
+    }
+
+    void shutdown() {
+        for (Uplink uplink : uplinks.values()) {
+            ticker.removeQueuedJob(uplink);
+        }
+        uplinks.clear();
+    }
+
+    /**
+     * A subscription was established. Uplinks whose eventing proved flaky stay so until an
+     * event reports a change or the polls stay quiet for long enough.
+     */
+    void established(UDN uplink) {
+        Uplink u = uplinks.get(uplink);
+        if (u == null) {
+            return;
+        }
+        synchronized (u) {
+            if (u.eventing != Eventing.ABSENT) {
+                return;
+            }
+            set(u, Eventing.HEALTHY);
+        }
+        schedule(u);
+    }
+
+    /**
+     * An event reported a change
+     */
+    void eventReceived(UDN uplink) {
+        Uplink u = uplinks.get(uplink);
+        if (u == null) {
+            return;
+        }
+        synchronized (u) {
+            if (u.eventing != Eventing.FLAKY) {
+                return;
+            }
+            set(u, Eventing.HEALTHY);
+        }
+        schedule(u);
+    }
+
+    void subscriptionFailed(UDN uplink) {
+        Uplink u = uplinks.get(uplink);
+        if (u == null) {
+            return;
+        }
+        synchronized (u) {
+            set(u, Eventing.ABSENT);
+            u.interval = MIN_POLL_INTERVAL;
+        }
+        schedule(u);
+    }
+
+    /**
+     * Cling drops a subscription it couldn't renew, so subscribe again right away
+     */
+    void renewalFailed(UDN uplink) {
+        Uplink u = uplinks.get(uplink);
+        if (u == null) {
+            return;
+        }
+        synchronized (u) {
+            set(u, Eventing.FLAKY);
+            u.interval = MIN_POLL_INTERVAL;
+            u.subscribedAt = System.nanoTime();
+        }
+        schedule(u);
+        handler.resubscribe(u.service);
+    }
+
+    void eventsMissed(UDN uplink) {
+        Uplink u = uplinks.get(uplink);
+        if (u == null) {
+            return;
+        }
+        synchronized (u) {
+            if (u.eventing != Eventing.HEALTHY) {
+                return;
+            }
+            set(u, Eventing.FLAKY);
+            u.interval = MIN_POLL_INTERVAL;
+        }
+        schedule(u);
+    }
+
+    /**
+     * Must hold the lock on the uplink
+     */
+    private void set(Uplink u, Eventing eventing) {
+        if (u.eventing != eventing) {
+            Logger.normal(this, "GENA eventing of uplink " + u.uplink + " is " + eventing);
+            u.eventing = eventing;
+            u.quietPolls = 0;
+        }
+    }
+
+    private void schedule(Uplink u) {
+        long delay;
+        synchronized (u) {
+            delay = u.getDelay();
+        }
+        ticker.removeQueuedJob(u);
+        if (uplinks.get(u.uplink) == u) {
+            ticker.queueTimedJob(u, "UPnP2 poll " + u.uplink, delay, false, true);
+        }
+    }
+
+    private void poll(final Uplink u) {
+        if (uplinks.get(u.uplink) != u) {
+            return;
+        }
+
+        boolean resubscribe = false;
+        synchronized (u) {
+            if (u.eventing == Eventing.ABSENT && System.nanoTime() - u.subscribedAt >=
+                    TimeUnit.MILLISECONDS.toNanos(RESUBSCRIBE_INTERVAL)) {
+                u.subscribedAt = System.nanoTime();
+                resubscribe = true;
+            }
+        }
+        if (resubscribe) {
+            Logger.normal(this, "Subscribing again to uplink " + u.uplink);
+            handler.resubscribe(u.service);
+        }
+
+        // Actions to a gateway which doesn't answer fail at once, and it's tried again later
+        CompletableFuture<Boolean> externalIP = client.getExternalIPAddress(u.service)
+                .thenApply(ip -> handler.polled(u.uplink, ip, null));
+        CompletableFuture<Boolean> status = GetStatusInfo.isSupported(u.service) ?
+                client.getStatusInfo(u.service)
+                        .thenApply(connectionStatus -> handler.polled(u.uplink, null,
+                                connectionStatus)) :
+                CompletableFuture.completedFuture(false);
+        externalIP.handle((changed, e) -> changed != null && changed)
+                .thenCombine(status.handle((changed, e) -> changed != null && changed),
+                        (ipChanged, statusChanged) -> ipChanged || statusChanged)
+                .thenAccept(changed -> polled(u, changed));
+    }
+
+    /**
+     * Adapt the poll interval to what the poll found
+     *
+     * @param changed Whether it found a value no event reported before
+     */
+    private void polled(Uplink u, boolean changed) {
+        synchronized (u) {
+            if (changed) {
+                if (u.eventing == Eventing.HEALTHY && u.polled) {
+                    Logger.normal(this, "Uplink " + u.uplink + " changed without an event");
+                    set(u, Eventing.FLAKY);
+                }
+                u.interval = MIN_POLL_INTERVAL;
+                u.quietPolls = 0;
+            } else {
+                u.interval = Math.min(u.interval * 2, MAX_POLL_INTERVAL);
+                if (u.eventing == Eventing.FLAKY && ++u.quietPolls >= RECOVERY_POLLS) {
+                    set(u, Eventing.HEALTHY);
+                }
+            }
+            u.polled = true;
+        }
+        schedule(u);
+    }
+
+    /**
+     * Eventing and poll interval of each uplink as a HTML fragment
+     */
+    String toHTML() {
+        Map<String, String> rows = new TreeMap<>();
+        for (Uplink u : uplinks.values()) {
+            Eventing eventing;
+            long delay;
+            synchronized (u) {
+                eventing = u.eventing;
+                delay = u.getDelay();
+            }
+            rows.put(u.uplink.getIdentifierString(), "<tr><td>" +
+                    HTMLEncoder.encode(u.uplink.getIdentifierString()) + "</td><td>" + eventing +
+                    "</td><td>" + TimeUnit.MILLISECONDS.toSeconds(delay) + " s</td></tr>\n");
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("<table><tr><th>Uplink</th><th>GENA eventing</th><th>Checked every</th>" +
+                "</tr>\n");
+        for (String row : rows.values()) {
+            sb.append(row);
+        }
+        sb.append("</table>\n");
+        return sb.toString();
+    }
+
+}
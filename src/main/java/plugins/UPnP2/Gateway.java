@@ -0,0 +1,154 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.controlpoint.SubscriptionCallback;
+import org.fourthline.cling.model.meta.Device;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UDN;
+
+import freenet.pluginmanager.DetectedIP;
+
+/**
+ * Immutable state of one uplink of an Internet Gateway Device, i.e. one WANConnectionDevice with
+ * its connection service. A multi-WAN gateway has one of these per WAN connection. Changes are
+ * made by creating a modified copy and publishing it through {@link GatewayStore}.
+ */
+final class Gateway {
+
+    private final UDN udn;
+    private final UDN uplink;
+    private final UDN link;
+    private final Device device;
+    private final Service connectionService;
+    private final Service commonService;
+    private final Service firewallService;
+    private final SubscriptionCallback subscriptionCallback;
+    private final DetectedIP detectedIP;
+
+    Gateway(Device device, Service connectionService, Service commonService,
+            Service firewallService, SubscriptionCallback subscriptionCallback,
+            DetectedIP detectedIP) {
+        this.udn = udnOf(device);
+        this.uplink = uplinkOf(connectionService);
+        this.link = linkOf(commonService);
+        this.device = device.getRoot();
+        this.connectionService = connectionService;
+        this.commonService = commonService;
+        this.firewallService = firewallService;
+        this.subscriptionCallback = subscriptionCallback;
+        this.detectedIP = detectedIP;
+    }
+
+    /**
+     * UDN of the root device, which identifies a gateway
+     */
+    static UDN udnOf(Device device) {
+        return device.getRoot().getIdentity().getUdn();
+    }
+
+    /**
+     * UDN of the WANConnectionDevice, which identifies an uplink
+     */
+    static UDN uplinkOf(Service connectionService) {
+        return connectionService.getDevice().getIdentity().getUdn();
+    }
+
+    /**
+     * UDN of the WANDevice, which identifies a physical WAN link. Its connections share it.
+     */
+    static UDN linkOf(Service commonService) {
+        return commonService.getDevice().getIdentity().getUdn();
+    }
+
+    /**
+     * UDN of the root device
+     */
+    UDN getUdn() {
+        return udn;
+    }
+
+    /**
+     * UDN of the WANConnectionDevice
+     */
+    UDN getUplink() {
+        return uplink;
+    }
+
+    /**
+     * UDN of the WANDevice
+     */
+    UDN getLink() {
+        return link;
+    }
+
+    /**
+     * Root device
+     */
+    Device getDevice() {
+        return device;
+    }
+
+    /**
+     * Service of type WANIPConnection or WANPPPConnection
+     */
+    Service getConnectionService() {
+        return connectionService;
+    }
+
+    /**
+     * Service of type WANCommonInterfaceConfig
+     */
+    Service getCommonService() {
+        return commonService;
+    }
+
+    /**
+     * Service of type WANIPv6FirewallControl, or null if the gateway has none
+     */
+    Service getFirewallService() {
+        return firewallService;
+    }
+
+    SubscriptionCallback getSubscriptionCallback() {
+        return subscriptionCallback;
+    }
+
+    /**
+     * External IP, or null if none was reported yet or it isn't valid (e.g. double NAT)
+     */
+    DetectedIP getDetectedIP() {
+        return detectedIP;
+    }
+
+    Gateway withSubscriptionCallback(SubscriptionCallback subscriptionCallback) {
+        return new Gateway(device, connectionService, commonService, firewallService,
+                subscriptionCallback, detectedIP);
+    }
+
+    Gateway withDetectedIP(DetectedIP detectedIP) {
+        return new Gateway(device, connectionService, commonService, firewallService,
+                subscriptionCallback, detectedIP);
+    }
+
+    @Override
+    public String toString() {
+        return device.getDisplayString() + " (" + udn + ", " + uplink + ")";
+    }
+
+}
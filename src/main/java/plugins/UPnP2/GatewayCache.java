@@ -0,0 +1,366 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.binding.xml.DescriptorBindingException;
+import org.fourthline.cling.binding.xml.ServiceDescriptorBinder;
+import org.fourthline.cling.model.ValidationException;
+import org.fourthline.cling.model.meta.Device;
+import org.fourthline.cling.model.meta.DeviceDetails;
+import org.fourthline.cling.model.meta.RemoteDevice;
+import org.fourthline.cling.model.meta.RemoteDeviceIdentity;
+import org.fourthline.cling.model.meta.RemoteService;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.DeviceType;
+import org.fourthline.cling.model.types.ServiceId;
+import org.fourthline.cling.model.types.ServiceType;
+import org.fourthline.cling.model.types.UDADeviceType;
+import org.fourthline.cling.model.types.UDN;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import freenet.support.Logger;
+
+/**
+ * The gateways we found last time, kept in the node's directory. On startup each of them is
+ * checked with a single SOAP call and used right away, instead of waiting for SSDP discovery and
+ * the device and service descriptors.
+ */
+class GatewayCache {
+
+    static final String FILE_NAME = "UPnP2-gateways.properties";
+    /**
+     * Seconds a restored gateway stays registered without an SSDP alive. Real ones announce
+     * themselves well within this.
+     */
+    private static final int MAX_AGE = 1800;
+    private static final UDADeviceType WAN_DEVICE_TYPE = new UDADeviceType("WANDevice", 1);
+    private static final UDADeviceType WAN_CONNECTION_DEVICE_TYPE =
+            new UDADeviceType("WANConnectionDevice", 1);
+
+    /**
+     * What we need to talk to a gateway without retrieving its descriptors
+     */
+    static final class Record {
+        final String udn;
+        final String deviceType;
+        final String friendlyName;
+        final String descriptorURL;
+        /**
+         * Our address on the interface the gateway was discovered on
+         */
+        final String localAddress;
+        final String wanDeviceUdn;
+        final String commonServiceId;
+        final String commonDescriptorURL;
+        final String commonControlURL;
+        final String connectionDeviceUdn;
+        final String connectionServiceType;
+        final String connectionServiceId;
+        final String connectionDescriptorURL;
+        final String connectionControlURL;
+        final String connectionEventURL;
+
+        private Record(String udn, String deviceType, String friendlyName, String descriptorURL,
+                       String localAddress, String wanDeviceUdn, String commonServiceId,
+                       String commonDescriptorURL, String commonControlURL,
+                       String connectionDeviceUdn, String connectionServiceType,
+                       String connectionServiceId, String connectionDescriptorURL,
+                       String connectionControlURL, String connectionEventURL) {
+            this.udn = udn;
+            this.deviceType = deviceType;
+            this.friendlyName = friendlyName;
+            this.descriptorURL = descriptorURL;
+            this.localAddress = localAddress;
+            this.wanDeviceUdn = wanDeviceUdn;
+            this.commonServiceId = commonServiceId;
+            this.commonDescriptorURL = commonDescriptorURL;
+            this.commonControlURL = commonControlURL;
+            this.connectionDeviceUdn = connectionDeviceUdn;
+            this.connectionServiceType = connectionServiceType;
+            this.connectionServiceId = connectionServiceId;
+            this.connectionDescriptorURL = connectionDescriptorURL;
+            this.connectionControlURL = connectionControlURL;
+            this.connectionEventURL = connectionEventURL;
+        }
+
+        /**
+         * @return Record of a discovered gateway, or null if it isn't a remote one
+         */
+        static Record of(Gateway gateway) {
+            if (!(gateway.getDevice() instanceof RemoteDevice)
+                    || !(gateway.getConnectionService() instanceof RemoteService)
+                    || !(gateway.getCommonService() instanceof RemoteService)) {
+                return null;
+            }
+            RemoteDevice device = (RemoteDevice) gateway.getDevice();
+            RemoteService common = (RemoteService) gateway.getCommonService();
+            RemoteService connection = (RemoteService) gateway.getConnectionService();
+            RemoteDeviceIdentity identity = device.getIdentity();
+
+            return new Record(
+                    gateway.getUdn().toString(),
+                    device.getType().toString(),
+                    device.getDetails().getFriendlyName(),
+                    identity.getDescriptorURL().toString(),
+                    identity.getDiscoveredOnLocalAddress().getHostAddress(),
+                    udnString(common.getDevice()),
+                    common.getServiceId().toString(),
+                    absolute(common, common.getDescriptorURI()),
+                    absolute(common, common.getControlURI()),
+                    udnString(connection.getDevice()),
+                    connection.getServiceType().toString(),
+                    connection.getServiceId().toString(),
+                    absolute(connection, connection.getDescriptorURI()),
+                    absolute(connection, connection.getControlURI()),
+                    absolute(connection, connection.getEventSubscriptionURI()));
+        }
+
+        /**
+         * Build the device tree Cling would have built from the gateway's descriptors, with only
+         * the two services we use. Their actions come from the SCPDs bundled with the plugin.
+         * This provisional device lacks the gateway's other uplinks and its firewall service, so
+         * it is replaced by the described one soon.
+         */
+        RemoteDevice toDevice(ServiceDescriptorBinder binder) throws IOException,
+                ValidationException, DescriptorBindingException {
+            URL descriptor = new URL(descriptorURL);
+            // An address literal, this doesn't resolve anything
+            InetAddress local = InetAddress.getByName(localAddress);
+            DeviceDetails details = new DeviceDetails(friendlyName);
+
+            RemoteService connection = binder.describe(new RemoteService(
+                    ServiceType.valueOf(connectionServiceType),
+                    ServiceId.valueOf(connectionServiceId),
+                    URI.create(connectionDescriptorURL),
+                    URI.create(connectionControlURL),
+                    URI.create(connectionEventURL)), scpd(connectionScpd()));
+            RemoteService common = binder.describe(new RemoteService(
+                    IGDServiceConfiguration.COMMON_INTERFACE_CONFIG_TYPE,
+                    ServiceId.valueOf(commonServiceId),
+                    URI.create(commonDescriptorURL),
+                    URI.create(commonControlURL),
+                    null), scpd("WANCommonInterfaceConfig.xml"));
+
+            RemoteDevice connectionDevice = new RemoteDevice(
+                    identity(connectionDeviceUdn, descriptor, local), WAN_CONNECTION_DEVICE_TYPE,
+                    details, connection);
+            RemoteDevice wanDevice = new RemoteDevice(
+                    identity(wanDeviceUdn, descriptor, local), WAN_DEVICE_TYPE, details,
+                    new RemoteService[]{common}, new RemoteDevice[]{connectionDevice});
+            return new RemoteDevice(identity(udn, descriptor, local),
+                    DeviceType.valueOf(deviceType), details, new RemoteService[0],
+                    new RemoteDevice[]{wanDevice});
+        }
+
+        /**
+         * WANIPConnection:2 has the IGD:2 actions on top of what the others have
+         */
+        private String connectionScpd() {
+            ServiceType type = ServiceType.valueOf(connectionServiceType);
+            return type.getType().equals("WANIPConnection") && type.getVersion() >= 2 ?
+                    "WANIPConnection2.xml" : "WANConnection.xml";
+        }
+
+        /**
+         * Whether we still have the address the gateway was discovered on
+         */
+        boolean isReachable() {
+            try {
+                return NetworkInterface.getByInetAddress(InetAddress.getByName(localAddress))
+                        != null;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void store(Properties properties, String prefix) {
+            set(properties, prefix + "udn", udn);
+            set(properties, prefix + "deviceType", deviceType);
+            set(properties, prefix + "friendlyName", friendlyName);
+            set(properties, prefix + "descriptorURL", descriptorURL);
+            set(properties, prefix + "localAddress", localAddress);
+            set(properties, prefix + "wanDeviceUdn", wanDeviceUdn);
+            set(properties, prefix + "commonServiceId", commonServiceId);
+            set(properties, prefix + "commonDescriptorURL", commonDescriptorURL);
+            set(properties, prefix + "commonControlURL", commonControlURL);
+            set(properties, prefix + "connectionDeviceUdn", connectionDeviceUdn);
+            set(properties, prefix + "connectionServiceType", connectionServiceType);
+            set(properties, prefix + "connectionServiceId", connectionServiceId);
+            set(properties, prefix + "connectionDescriptorURL", connectionDescriptorURL);
+            set(properties, prefix + "connectionControlURL", connectionControlURL);
+            set(properties, prefix + "connectionEventURL", connectionEventURL);
+        }
+
+        /**
+         * @return The record stored under {@code prefix}, or null if it is incomplete
+         */
+        static Record load(Properties properties, String prefix) {
+            Record record = new Record(
+                    properties.getProperty(prefix + "udn"),
+                    properties.getProperty(prefix + "deviceType"),
+                    properties.getProperty(prefix + "friendlyName", ""),
+                    properties.getProperty(prefix + "descriptorURL"),
+                    properties.getProperty(prefix + "localAddress"),
+                    properties.getProperty(prefix + "wanDeviceUdn"),
+                    properties.getProperty(prefix + "commonServiceId"),
+                    properties.getProperty(prefix + "commonDescriptorURL"),
+                    properties.getProperty(prefix + "commonControlURL"),
+                    properties.getProperty(prefix + "connectionDeviceUdn"),
+                    properties.getProperty(prefix + "connectionServiceType"),
+                    properties.getProperty(prefix + "connectionServiceId"),
+                    properties.getProperty(prefix + "connectionDescriptorURL"),
+                    properties.getProperty(prefix + "connectionControlURL"),
+                    properties.getProperty(prefix + "connectionEventURL"));
+            if (record.udn == null || record.deviceType == null || record.descriptorURL == null
+                    || record.localAddress == null || record.wanDeviceUdn == null
+                    || record.commonServiceId == null || record.commonDescriptorURL == null
+                    || record.commonControlURL == null || record.connectionDeviceUdn == null
+                    || record.connectionServiceType == null
+                    || record.connectionServiceId == null
+                    || record.connectionDescriptorURL == null
+                    || record.connectionControlURL == null
+                    || record.connectionEventURL == null) {
+                return null;
+            }
+            return record;
+        }
+
+        private static RemoteDeviceIdentity identity(String udn, URL descriptor,
+                                                     InetAddress local) {
+            return new RemoteDeviceIdentity(UDN.valueOf(udn), MAX_AGE, descriptor, null, local);
+        }
+
+        private static String udnString(Device device) {
+            return device.getIdentity().getUdn().toString();
+        }
+
+        private static String absolute(RemoteService service, URI uri) {
+            return service.getDevice().normalizeURI(uri).toString();
+        }
+
+        private static void set(Properties properties, String key, String value) {
+            if (value != null) {
+                properties.setProperty(key, value);
+            }
+        }
+    }
+
+    private static final ConcurrentHashMap<String, String> scpds = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, Record> records = new ConcurrentHashMap<>();
+    private final PropertiesFile propertiesFile;
+
+    /**
+     * @param file     Where the records are kept, or null to keep them in memory only
+     * @param executor Writes the file
+     */
+    GatewayCache(File file, Executor executor) {
+        propertiesFile = new PropertiesFile(file, executor, "Gateways found by UPnP2") {
+            @Override
+            protected Properties snapshot() {
+                Properties properties = new Properties();
+                int i = 0;
+                for (Record record : records.values()) {
+                    record.store(properties, "gateway." + i++ + ".");
+                }
+                return properties;
+            }
+        };
+    }
+
+    /**
+     * Read the records saved last time. Unreadable ones are skipped.
+     */
+    Collection<Record> load() {
+        Properties properties = propertiesFile.read();
+        List<Record> loaded = new ArrayList<>();
+        for (int i = 0; ; i++) {
+            String prefix = "gateway." + i + ".";
+            if (properties.getProperty(prefix + "udn") == null) {
+                break;
+            }
+            Record record = Record.load(properties, prefix);
+            if (record == null) {
+                Logger.warning(this, "Skipping incomplete gateway record " + i);
+                continue;
+            }
+            records.put(record.udn, record);
+            loaded.add(record);
+        }
+        return loaded;
+    }
+
+    /**
+     * Remember a discovered gateway. Of a multi-WAN gateway, the uplink put last is kept. The
+     * rest of it is only known once its real descriptors are retrieved.
+     */
+    void put(Gateway gateway) {
+        Record record = Record.of(gateway);
+        if (record == null) {
+            return;
+        }
+        records.put(record.udn, record);
+        save();
+    }
+
+    void remove(String udn) {
+        if (records.remove(udn) != null) {
+            save();
+        }
+    }
+
+    private void save() {
+        propertiesFile.save();
+    }
+
+    private static String scpd(String name) throws IOException {
+        String xml = scpds.get(name);
+        if (xml == null) {
+            try (InputStream in = GatewayCache.class.getResourceAsStream(name)) {
+                if (in == null) {
+                    throw new IOException("Missing resource: " + name);
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                xml = out.toString("UTF-8");
+            }
+            scpds.put(name, xml);
+        }
+        return xml;
+    }
+
+}
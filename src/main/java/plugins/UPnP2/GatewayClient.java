@@ -0,0 +1,657 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionArgumentValue;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.message.UpnpResponse;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+import org.fourthline.cling.support.igd.callback.PortMappingAdd;
+import org.fourthline.cling.support.igd.callback.PortMappingDelete;
+import org.fourthline.cling.support.model.PortMapping;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import freenet.support.Ticker;
+import plugins.UPnP2.actions.AddAnyPortMapping;
+import plugins.UPnP2.actions.AddPinhole;
+import plugins.UPnP2.actions.DeletePinhole;
+import plugins.UPnP2.actions.DeletePortMappingRange;
+import plugins.UPnP2.actions.GetCommonLinkProperties;
+import plugins.UPnP2.actions.GetExternalIPSync;
+import plugins.UPnP2.actions.GetGenericPortMappingEntry;
+import plugins.UPnP2.actions.GetLinkLayerMaxBitRates;
+import plugins.UPnP2.actions.GetListOfPortMappings;
+import plugins.UPnP2.actions.GetSpecificPortMappingEntry;
+import plugins.UPnP2.actions.GetStatusInfo;
+import plugins.UPnP2.actions.GetTotalBytesReceived;
+import plugins.UPnP2.actions.GetTotalBytesSent;
+import plugins.UPnP2.actions.PortMappingTable;
+import plugins.UPnP2.actions.UpdatePinhole;
+
+/**
+ * Asynchronous client for every IGD action the plugin sends. Every action returns a future
+ * which completes with its typed result, or fails with an {@link ActionFailedException} when the
+ * gateway refuses it, doesn't answer within its adaptive timeout or its circuit breaker is open.
+ * Outcomes are recorded in {@link Metrics} once, whichever of the answer and the timeout comes
+ * first, but an answer after the timeout still feeds {@link GatewayHealth}. No thread waits for
+ * a gateway, the timeouts run on the ticker.
+ */
+class GatewayClient {
+
+    /**
+     * Stop reading a port mapping table entry by entry at this many entries. Real tables are
+     * far smaller, this only guards against a router which never says the table ended.
+     */
+    private static final int MAX_TABLE_ENTRIES = 1024;
+
+    /**
+     * An action which didn't succeed
+     */
+    static class ActionFailedException extends Exception {
+
+        private final int errorCode;
+        private final boolean answered;
+
+        ActionFailedException(String message) {
+            this(message, 0, false);
+        }
+
+        ActionFailedException(String message, int errorCode, boolean answered) {
+            super(message);
+            this.errorCode = errorCode;
+            this.answered = answered;
+        }
+
+        /**
+         * @return The UPnP error code the gateway answered with, or 0 if there is none
+         */
+        int getErrorCode() {
+            return errorCode;
+        }
+
+        /**
+         * @return Whether the gateway answered with an error. Otherwise the action timed out or
+         * was never sent, and the gateway may have carried it out anyway.
+         */
+        boolean isAnswered() {
+            return answered;
+        }
+    }
+
+    /**
+     * One action in flight
+     */
+    private class Call<T> {
+        final String action;
+        final Service service;
+        final String gateway;
+        final long start = System.nanoTime();
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Call(String action, Service service) {
+            this.action = action;
+            this.service = service;
+            this.gateway = Metrics.gatewayOf(service.getDevice());
+        }
+
+        void succeed(T value) {
+            if (future.complete(value)) {
+                metrics.record(action, service, Metrics.Outcome.SUCCESS, start);
+            } else {
+                answeredLate();
+            }
+        }
+
+        void fail(ActionInvocation invocation, UpnpResponse operation, String defaultMsg) {
+            fail(new ActionFailedException(defaultMsg, invocation.getFailure() == null ? 0 :
+                    invocation.getFailure().getErrorCode(),
+                    !Metrics.isTimeout(service, operation)));
+        }
+
+        void fail(ActionFailedException e) {
+            if (future.completeExceptionally(e)) {
+                metrics.record(action, service, e.isAnswered() ? Metrics.Outcome.FAILURE :
+                        Metrics.Outcome.TIMEOUT, start);
+            } else if (e.isAnswered()) {
+                answeredLate();
+            }
+        }
+
+        void timedOut(long timeout) {
+            if (future.completeExceptionally(new ActionFailedException("No answer from " +
+                    gateway + " within " + timeout + " ms"))) {
+                // The gateway may still answer, so this only backs its timeout off
+                metrics.record(action, service, Metrics.Outcome.TIMEOUT, -1);
+                metrics.getHealth().expired(gateway);
+            }
+        }
+
+        /**
+         * The gateway answered after the timeout, which still tells how long it takes
+         */
+        private void answeredLate() {
+            metrics.getHealth().answered(gateway, System.nanoTime() - start);
+        }
+    }
+
+    private final ControlPoint controlPoint;
+    private final Ticker ticker;
+    private final Metrics metrics;
+
+    GatewayClient(ControlPoint controlPoint, Ticker ticker, Metrics metrics) {
+        this.controlPoint = controlPoint;
+        this.ticker = ticker;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Send an action unless its gateway's circuit breaker is open, and fail it once the
+     * gateway's adaptive timeout passed
+     */
+    private <T> CompletableFuture<T> send(final Call<T> call, ActionCallback callback) {
+        GatewayHealth health = metrics.getHealth();
+        if (!health.allow(call.gateway)) {
+            call.future.completeExceptionally(new ActionFailedException("Skipping unresponsive " +
+                    "gateway " + call.gateway));
+            return call.future;
+        }
+
+        final long timeout = health.getTimeout(call.gateway);
+        final Runnable timer = () -> call.timedOut(timeout);
+        ticker.queueTimedJob(timer, "UPnP2 " + call.action + " timeout", timeout, false, false);
+        call.future.whenComplete((value, e) -> ticker.removeQueuedJob(timer));
+
+        controlPoint.execute(callback);
+        return call.future;
+    }
+
+    CompletableFuture<String> getExternalIPAddress(Service connectionService) {
+        final Call<String> call = new Call<>(Metrics.GET_EXTERNAL_IP_ADDRESS, connectionService);
+        return send(call, new GetExternalIPSync(connectionService) {
+            @Override
+            protected void success(String externalIPAddress) {
+                call.succeed(externalIPAddress);
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                call.fail(invocation, operation, defaultMsg);
+            }
+        });
+    }
+
+    /**
+     * @return The connection status, e.g. Connected
+     */
+    CompletableFuture<String> getStatusInfo(Service connectionService) {
+        final Call<String> call = new Call<>(Metrics.GET_STATUS_INFO, connectionService);
+        return send(call, new GetStatusInfo(connectionService) {
+            @Override
+            protected void success(String connectionStatus) {
+                call.succeed(connectionStatus);
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                call.fail(invocation, operation, defaultMsg);
+            }
+        });
+    }
+
+    /**
+     * @return {upstream, downstream} in bit/s
+     */
+    CompletableFuture<int[]> getLinkLayerMaxBitRates(Service connectionService) {
+        final Call<int[]> call = new Call<>(Metrics.GET_LINK_LAYER_MAX_BIT_RATES,
+                connectionService);
+        return send(call, new GetLinkLayerMaxBitRates(connectionService) {
+            @Override
+            protected void success(int newUpstreamMaxBitRate, int newDownstreamMaxBitRate) {
+                call.succeed(new int[]{newUpstreamMaxBitRate, newDownstreamMaxBitRate});
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                call.fail(invocation, operation, defaultMsg);
+            }
+        });
+    }
+
+    /**
+     * @return {upstream, downstream} in bit/s
+     */
+    CompletableFuture<int[]> getCommonLinkProperties(Service commonService) {
+        final Call<int[]> call = new Call<>(Metrics.GET_COMMON_LINK_PROPERTIES, commonService);
+        return send(call, new GetCommonLinkProperties(commonService) {
+            @Override
+            protected void success(int newUpstreamMaxBitRate, int newDownstreamMaxBitRate) {
+                call.succeed(new int[]{newUpstreamMaxBitRate, newDownstreamMaxBitRate});
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                call.fail(invocation, operation, defaultMsg);
+            }
+        });
+    }
+
+    CompletableFuture<Long> getTotalBytesSent(Service commonService) {
+        final Call<Long> call = new Call<>(Metrics.GET_TOTAL_BYTES_SENT, commonService);
+        return send(call, new GetTotalBytesSent(commonService) {
+            @Override
+            protected void success(long totalBytesSent) {
+                call.succeed(totalBytesSent);
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                call.fail(invocation, operation, defaultMsg);
+            }
+        });
+    }
+
+    CompletableFuture<Long> getTotalBytesReceived(Service commonService) {
+        final Call<Long> call = new Call<>(Metrics.GET_TOTAL_BYTES_RECEIVED, commonService);
+        return send(call, new GetTotalBytesReceived(commonService) {
+            @Override
+            protected void success(long totalBytesReceived) {
+                call.succeed(totalBytesReceived);
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                call.fail(invocation, operation, defaultMsg);
+            }
+        });
+    }
+
+    /**
+     * @return The internal client the external port of the mapping is mapped to, or null if the
+     * gateway didn't say. Fails with error code 714 if it isn't mapped.
+     */
+    CompletableFuture<String> getSpecificPortMappingEntry(Service connectionService,
+                                                          PortMapping portMapping) {
+        final Call<String> call = new Call<>(Metrics.GET_SPECIFIC_PORT_MAPPING_ENTRY,
+                connectionService);
+        return send(call, new GetSpecificPortMappingEntry(connectionService, portMapping) {
+            @Override
+            public void success(ActionInvocation invocation) {
+                ActionArgumentValue client = invocation.getOutput("NewInternalClient");
+                call.succeed(client == null ? null : String.valueOf(client.getValue()));
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                call.fail(invocation, operation, defaultMsg);
+            }
+        });
+    }
+
+    CompletableFuture<Void> addPortMapping(Service connectionService, PortMapping portMapping) {
+        final Call<Void> call = new Call<>(Metrics.ADD_PORT_MAPPING, connectionService);
+        return send(call, new PortMappingAdd(connectionService, portMapping) {
+            @Override
+            public void success(ActionInvocation invocation) {
+                call.succeed(null);
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                call.fail(invocation, operation, defaultMsg);
+            }
+        });
+    }
+
+    /**
+     * @return The external port the gateway mapped
+     */
+    CompletableFuture<Integer> addAnyPortMapping(Service connectionService,
+                                                 PortMapping portMapping) {
+        final Call<Integer> call = new Call<>(Metrics.ADD_ANY_PORT_MAPPING, connectionService);
+        return send(call, new AddAnyPortMapping(connectionService, portMapping) {
+            @Override
+            protected void success(int reservedPort) {
+                call.succeed(reservedPort);
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                call.fail(invocation, operation, defaultMsg);
+            }
+        });
+    }
+
+    CompletableFuture<Void> deletePortMapping(Service connectionService,
+                                              PortMapping portMapping) {
+        final Call<Void> call = new Call<>(Metrics.DELETE_PORT_MAPPING, connectionService);
+        return send(call, new PortMappingDelete(connectionService, portMapping) {
+            @Override
+            public void success(ActionInvocation invocation) {
+                call.succeed(null);
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                call.fail(invocation, operation, defaultMsg);
+            }
+        });
+    }
+
+    CompletableFuture<Void> deletePortMappingRange(Service connectionService, int startPort,
+                                                   int endPort, PortMapping.Protocol protocol) {
+        final Call<Void> call = new Call<>(Metrics.DELETE_PORT_MAPPING_RANGE, connectionService);
+        return send(call, new DeletePortMappingRange(connectionService, startPort, endPort,
+                protocol) {
+            @Override
+            public void success(ActionInvocation invocation) {
+                call.succeed(null);
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                call.fail(invocation, operation, defaultMsg);
+            }
+        });
+    }
+
+    /**
+     * Read the whole port mapping table: with GetListOfPortMappings where the service has it
+     * (IGD:2), otherwise or if that fails entry by entry with GetGenericPortMappingEntry. Each
+     * action has its own timeout, the whole read is recorded as
+     * {@link Metrics#PORT_MAPPING_TABLE}.
+     */
+    CompletableFuture<PortMappingTable> getPortMappingTable(final Service connectionService) {
+        final long start = System.nanoTime();
+        Supplier<CompletableFuture<List<PortMapping>>> entryByEntry = () -> {
+            if (!GetGenericPortMappingEntry.isSupported(connectionService)) {
+                return failed("Reading the port mapping table isn't supported");
+            }
+            CompletableFuture<List<PortMapping>> entries = new CompletableFuture<>();
+            readEntries(connectionService, new ArrayList<PortMapping>(), entries);
+            return entries;
+        };
+        CompletableFuture<List<PortMapping>> entries =
+                GetListOfPortMappings.isSupported(connectionService) ?
+                orElse(listPortMappings(connectionService), entryByEntry) : entryByEntry.get();
+        return entries.whenComplete((list, e) -> metrics.record(Metrics.PORT_MAPPING_TABLE,
+                connectionService, e == null ? Metrics.Outcome.SUCCESS : Metrics.Outcome.FAILURE,
+                start)).thenApply(PortMappingTable::new);
+    }
+
+    /**
+     * @return Whether {@link #getPortMappingTable} can read the table of this service at all
+     */
+    static boolean isPortMappingTableSupported(Service connectionService) {
+        return GetListOfPortMappings.isSupported(connectionService)
+                || GetGenericPortMappingEntry.isSupported(connectionService);
+    }
+
+    /**
+     * @return The TCP and then the UDP mappings
+     */
+    private CompletableFuture<List<PortMapping>> listPortMappings(final Service connectionService) {
+        return getListOfPortMappings(connectionService, PortMapping.Protocol.TCP)
+                .thenCompose(tcp -> getListOfPortMappings(connectionService,
+                        PortMapping.Protocol.UDP).thenApply(udp -> {
+                            List<PortMapping> all = new ArrayList<>(tcp);
+                            all.addAll(udp);
+                            return all;
+                        }));
+    }
+
+    private CompletableFuture<List<PortMapping>> getListOfPortMappings(Service connectionService,
+            PortMapping.Protocol protocol) {
+        final Call<List<PortMapping>> call = new Call<>(Metrics.GET_LIST_OF_PORT_MAPPINGS,
+                connectionService);
+        return send(call, new GetListOfPortMappings(connectionService, protocol) {
+            @Override
+            protected void success(List<PortMapping> entries) {
+                call.succeed(entries);
+            }
+
+            @Override
+            protected void invalid(String reason) {
+                call.fail(new ActionFailedException(reason, 0, true));
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                if (invocation.getFailure() != null && invocation.getFailure().getErrorCode()
+                        == GetListOfPortMappings.NO_SUCH_ENTRY_IN_ARRAY) {
+                    // Nothing mapped with this protocol
+                    call.succeed(Collections.<PortMapping>emptyList());
+                } else {
+                    // Most likely not authorized to see other hosts' mappings
+                    call.fail(invocation, operation, defaultMsg);
+                }
+            }
+        });
+    }
+
+    /**
+     * Read the entries following the ones read so far, one action after another
+     */
+    private void readEntries(final Service connectionService, final List<PortMapping> entries,
+                             final CompletableFuture<List<PortMapping>> result) {
+        if (entries.size() >= MAX_TABLE_ENTRIES) {
+            result.complete(entries);
+            return;
+        }
+        getGenericPortMappingEntry(connectionService, entries.size()).whenComplete((entry, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else if (entry == null) {
+                result.complete(entries);
+            } else {
+                entries.add(entry);
+                readEntries(connectionService, entries, result);
+            }
+        });
+    }
+
+    /**
+     * @return The entry, or null past the last one
+     */
+    private CompletableFuture<PortMapping> getGenericPortMappingEntry(Service connectionService,
+                                                                      int index) {
+        final Call<PortMapping> call = new Call<>(Metrics.GET_GENERIC_PORT_MAPPING_ENTRY,
+                connectionService);
+        return send(call, new GetGenericPortMappingEntry(connectionService, index) {
+            @Override
+            protected void success(PortMapping entry) {
+                call.succeed(entry);
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                int errorCode = invocation.getFailure() == null ? 0 :
+                        invocation.getFailure().getErrorCode();
+                if (errorCode == GetGenericPortMappingEntry.SPECIFIED_ARRAY_INDEX_INVALID
+                        || errorCode == GetGenericPortMappingEntry.NO_SUCH_ENTRY_IN_ARRAY) {
+                    call.succeed(null);
+                } else {
+                    call.fail(invocation, operation, defaultMsg);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The UniqueID of the pinhole. Fails with {@link AddPinhole#FIREWALL_DISABLED} or
+     * {@link AddPinhole#PINHOLE_NOT_ALLOWED} where the gateway won't open pinholes.
+     */
+    CompletableFuture<Integer> addPinhole(Service firewallService, PortMapping pinhole) {
+        final Call<Integer> call = new Call<>(Metrics.ADD_PINHOLE, firewallService);
+        return send(call, new AddPinhole(firewallService, pinhole) {
+            @Override
+            protected void success(int uniqueId) {
+                call.succeed(uniqueId);
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                call.fail(invocation, operation, defaultMsg);
+            }
+        });
+    }
+
+    CompletableFuture<Void> updatePinhole(Service firewallService, int uniqueId,
+                                          UnsignedIntegerFourBytes leaseTime) {
+        final Call<Void> call = new Call<>(Metrics.UPDATE_PINHOLE, firewallService);
+        return send(call, new UpdatePinhole(firewallService, uniqueId, leaseTime) {
+            @Override
+            public void success(ActionInvocation invocation) {
+                call.succeed(null);
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                call.fail(invocation, operation, defaultMsg);
+            }
+        });
+    }
+
+    CompletableFuture<Void> deletePinhole(Service firewallService, int uniqueId) {
+        final Call<Void> call = new Call<>(Metrics.DELETE_PINHOLE, firewallService);
+        return send(call, new DeletePinhole(firewallService, uniqueId) {
+            @Override
+            public void success(ActionInvocation invocation) {
+                call.succeed(null);
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                call.fail(invocation, operation, defaultMsg);
+            }
+        });
+    }
+
+    // ###################################
+    // Composition
+    // ###################################
+
+    /**
+     * Run an action on several services at once
+     *
+     * @return Completes once every action finished, with the results of the ones which
+     * succeeded with a value
+     */
+    static <T> CompletableFuture<Map<Service, T>> fanOut(Collection<Service> services,
+            Function<Service, CompletableFuture<T>> action) {
+        final Map<Service, T> results = new ConcurrentHashMap<>();
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[services.size()];
+        int i = 0;
+        for (final Service service : services) {
+            futures[i++] = action.apply(service).handle((value, e) -> {
+                if (value != null) {
+                    results.put(service, value);
+                }
+                return null;
+            });
+        }
+        return CompletableFuture.allOf(futures).thenApply(done -> results);
+    }
+
+    /**
+     * @return The result of the future, or if it fails, of the fallback
+     */
+    static <T> CompletableFuture<T> orElse(CompletableFuture<T> future,
+                                           final Supplier<CompletableFuture<T>> fallback) {
+        return future.handle((value, e) -> e == null ? CompletableFuture.completedFuture(value) :
+                fallback.get()).thenCompose(Function.identity());
+    }
+
+    /**
+     * @return A future which already failed, e.g. for an action the gateway doesn't have
+     */
+    static <T> CompletableFuture<T> failed(String reason) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(new ActionFailedException(reason));
+        return future;
+    }
+
+    /**
+     * @return Why a future failed, from the exception it reports
+     */
+    static ActionFailedException failureOf(Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e instanceof ActionFailedException ? (ActionFailedException) e :
+                new ActionFailedException(String.valueOf(e));
+    }
+
+    /**
+     * Wait for a future, for callers which have to return a value. Prefer composing. Actions
+     * fail once their timeout passed, so this doesn't wait for long.
+     *
+     * @return Its result, or null if it failed
+     */
+    static <T> T await(CompletableFuture<T> future) {
+        return await(future, Long.MAX_VALUE);
+    }
+
+    /**
+     * Wait for a future, for callers which have to return a value. Prefer composing.
+     *
+     * @return Its result, or null if it failed or didn't complete within the given time
+     */
+    static <T> T await(CompletableFuture<T> future, long millis) {
+        try {
+            return future.get(millis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // The action records its own outcome
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package plugins.UPnP2;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import freenet.support.Logger;
+
+/**
+ * How well each gateway answers SOAP actions. An exponentially weighted moving average of its
+ * latency and of the latency's deviation, as TCP keeps for round trips, gives each gateway its
+ * own timeout, never below a second as in RFC 6298. Each time it expires the timeout doubles,
+ * up to {@link #MAX_TIMEOUT}, until the gateway answers again. An answer which arrives after its
+ * timeout still counts as one. After {@link #FAILURES_TO_OPEN} actions in a row got no answer
+ * within the longest timeout its circuit breaker opens, and calls to it are skipped until a
+ * single probe let through after {@link #OPEN_INTERVAL} is answered.
+ * <p>
+ * An error response is an answer too, only timeouts and unreachable gateways count as failures.
+ */
+class GatewayHealth {
+
+    /**
+     * Weight of a new latency in the average, as in TCP
+     */
+    private static final double ALPHA = 1 / 8.0;
+    /**
+     * Weight of a new deviation in the average, as in TCP
+     */
+    private static final double BETA = 1 / 4.0;
+    private static final long MIN_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * Timeout of gateways nothing was measured of yet, and the longest one
+     */
+    private static final long MAX_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(Long.getLong(
+            "plugins.UPnP2.maxActionTimeout", TimeUnit.SECONDS.toMillis(10)));
+    /**
+     * Failures in a row after which a gateway's breaker opens
+     */
+    private static final int FAILURES_TO_OPEN = Integer.getInteger(
+            "plugins.UPnP2.breakerFailures", 3);
+    /**
+     * Nanoseconds an open breaker skips calls before letting a probe through
+     */
+    private static final long OPEN_INTERVAL = TimeUnit.MILLISECONDS.toNanos(Long.getLong(
+            "plugins.UPnP2.breakerInterval", TimeUnit.MINUTES.toMillis(1)));
+
+    private enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static class Health {
+        /**
+         * Nanoseconds, or -1 before the first answer
+         */
+        double averageLatency = -1;
+        double latencyDeviation;
+        /**
+         * Times the timeout doubled since the last answer
+         */
+        int backoff;
+        int failures;
+        State state = State.CLOSED;
+        /**
+         * When the breaker opened, or the probe was let through while half open
+         */
+        long since;
+    }
+
+    private final ConcurrentHashMap<String, Health> gateways = new ConcurrentHashMap<>();
+
+    /**
+     * Whether a call may go to a gateway now. While the breaker is open this lets one probe
+     * through per {@link #OPEN_INTERVAL}, whose outcome closes or reopens it.
+     *
+     * @param gateway As in {@link Metrics#gatewayOf}
+     */
+    boolean allow(String gateway) {
+        Health health = gateways.get(gateway);
+        if (health == null) {
+            return true;
+        }
+        synchronized (health) {
+            switch (health.state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (System.nanoTime() - health.since < OPEN_INTERVAL) {
+                        return false;
+                    }
+                    Logger.normal(this, "Probing unresponsive gateway " + gateway);
+                    health.state = State.HALF_OPEN;
+                    health.since = System.nanoTime();
+                    return true;
+                default:
+                    // A probe which never came back doesn't keep it shut
+                    if (System.nanoTime() - health.since < OPEN_INTERVAL + MAX_TIMEOUT) {
+                        return false;
+                    }
+                    health.since = System.nanoTime();
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * @return Milliseconds to wait for an answer from a gateway
+     */
+    long getTimeout(String gateway) {
+        Health health = gateways.get(gateway);
+        if (health == null) {
+            return TimeUnit.NANOSECONDS.toMillis(MAX_TIMEOUT);
+        }
+        synchronized (health) {
+            return TimeUnit.NANOSECONDS.toMillis(getTimeoutNanos(health));
+        }
+    }
+
+    private static long getTimeoutNanos(Health health) {
+        if (health.averageLatency < 0) {
+            return MAX_TIMEOUT;
+        }
+        long timeout = Math.max(MIN_TIMEOUT, (long) (health.averageLatency +
+                4 * health.latencyDeviation));
+        return Math.min(MAX_TIMEOUT, timeout << health.backoff);
+    }
+
+    /**
+     * @return Moving average of a gateway's latency in microseconds, or -1 if none was measured
+     */
+    long getLatencyMicros(String gateway) {
+        Health health = gateways.get(gateway);
+        if (health == null) {
+            return -1;
+        }
+        synchronized (health) {
+            return health.averageLatency < 0 ? -1 :
+                    TimeUnit.NANOSECONDS.toMicros((long) health.averageLatency);
+        }
+    }
+
+    /**
+     * The gateway answered, with a result or an error
+     */
+    void answered(String gateway, long latencyNanos) {
+        Health health = getHealth(gateway);
+        synchronized (health) {
+            if (health.averageLatency < 0) {
+                health.averageLatency = latencyNanos;
+                health.latencyDeviation = latencyNanos / 2.0;
+            } else {
+                health.latencyDeviation = (1 - BETA) * health.latencyDeviation +
+                        BETA * Math.abs(health.averageLatency - latencyNanos);
+                health.averageLatency = (1 - ALPHA) * health.averageLatency +
+                        ALPHA * latencyNanos;
+            }
+            health.backoff = 0;
+            health.failures = 0;
+            if (health.state != State.CLOSED) {
+                Logger.normal(this, "Gateway " + gateway + " answers again");
+                health.state = State.CLOSED;
+            }
+        }
+    }
+
+    /**
+     * The timeout from {@link #getTimeout} passed without an answer. Doubles the timeout, and
+     * only counts as a failure once it can't grow any more or the call was a probe.
+     */
+    void expired(String gateway) {
+        Health health = getHealth(gateway);
+        synchronized (health) {
+            if (health.state == State.CLOSED && getTimeoutNanos(health) < MAX_TIMEOUT) {
+                health.backoff++;
+                return;
+            }
+            failed(gateway, health);
+        }
+    }
+
+    /**
+     * The gateway didn't answer in time or couldn't be reached
+     */
+    void failed(String gateway) {
+        Health health = getHealth(gateway);
+        synchronized (health) {
+            failed(gateway, health);
+        }
+    }
+
+    /**
+     * Call while holding the lock on health
+     */
+    private void failed(String gateway, Health health) {
+        health.failures++;
+        if (health.state == State.HALF_OPEN || (health.state == State.CLOSED
+                && health.failures >= FAILURES_TO_OPEN)) {
+            Logger.warning(this, "Gateway " + gateway + " isn't answering, skipping it for " +
+                    TimeUnit.NANOSECONDS.toSeconds(OPEN_INTERVAL) + " s");
+            health.state = State.OPEN;
+            health.since = System.nanoTime();
+        }
+    }
+
+    private Health getHealth(String gateway) {
+        Health health = gateways.get(gateway);
+        if (health == null) {
+            health = new Health();
+            Health existing = gateways.putIfAbsent(gateway, health);
+            if (existing != null) {
+                health = existing;
+            }
+        }
+        return health;
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.model.types.UDN;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * All known uplinks of all gateways, keyed by {@link Gateway#getUplink()}. The whole map is an
+ * immutable snapshot which is replaced atomically on every change, so readers never block and
+ * never see it half updated.
+ */
+class GatewayStore {
+
+    interface Update {
+
+        /**
+         * @return The new state, or the same instance to leave it unchanged
+         */
+        Gateway apply(Gateway current);
+    }
+
+    private final AtomicReference<Map<UDN, Gateway>> gateways =
+            new AtomicReference<>(Collections.<UDN, Gateway>emptyMap());
+
+    Map<UDN, Gateway> snapshot() {
+        return gateways.get();
+    }
+
+    Collection<Gateway> all() {
+        return gateways.get().values();
+    }
+
+    boolean isEmpty() {
+        return gateways.get().isEmpty();
+    }
+
+    Gateway get(UDN uplink) {
+        return gateways.get().get(uplink);
+    }
+
+    /**
+     * Add or replace a gateway
+     */
+    void put(Gateway gateway) {
+        while (true) {
+            Map<UDN, Gateway> current = gateways.get();
+            Map<UDN, Gateway> next = new HashMap<>(current);
+            next.put(gateway.getUplink(), gateway);
+            if (gateways.compareAndSet(current, Collections.unmodifiableMap(next))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Remove every uplink of a gateway
+     *
+     * @param udn UDN of the root device
+     * @return The removed uplinks, none if the gateway wasn't known
+     */
+    List<Gateway> remove(UDN udn) {
+        while (true) {
+            Map<UDN, Gateway> current = gateways.get();
+            List<Gateway> removed = new ArrayList<>();
+            Map<UDN, Gateway> next = new HashMap<>(current);
+            for (Gateway gateway : current.values()) {
+                if (gateway.getUdn().equals(udn)) {
+                    removed.add(gateway);
+                    next.remove(gateway.getUplink());
+                }
+            }
+            if (removed.isEmpty()
+                    || gateways.compareAndSet(current, Collections.unmodifiableMap(next))) {
+                return removed;
+            }
+        }
+    }
+
+    /**
+     * Atomically replace a gateway's state. The update may run more than once if other changes
+     * race with it, so it must not have side effects.
+     *
+     * @return The new state, or null if the gateway isn't known
+     */
+    Gateway update(UDN uplink, Update update) {
+        while (true) {
+            Map<UDN, Gateway> current = gateways.get();
+            Gateway gateway = current.get(uplink);
+            if (gateway == null) {
+                return null;
+            }
+            Gateway updated = update.apply(gateway);
+            if (updated == gateway) {
+                return gateway;
+            }
+            Map<UDN, Gateway> next = new HashMap<>(current);
+            next.put(uplink, updated);
+            if (gateways.compareAndSet(current, Collections.unmodifiableMap(next))) {
+                return updated;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.DefaultUpnpServiceConfiguration;
+import org.fourthline.cling.model.types.ServiceType;
+import org.fourthline.cling.model.types.UDAServiceType;
+
+/**
+ * Cling configuration which only retrieves the descriptors of services an internet gateway
+ * device offers us. Every other device announcing itself on the LAN then costs a single device
+ * descriptor instead of one per service.
+ */
+class IGDServiceConfiguration extends DefaultUpnpServiceConfiguration {
+
+    /**
+     * Connection services we can map ports on and get the external IP from
+     */
+    static final UDAServiceType[] CONNECTION_SERVICE_TYPES = {
+            new UDAServiceType("WANIPConnection", 1),
+            new UDAServiceType("WANIPConnection", 2),
+            new UDAServiceType("WANPPPConnection", 1)
+    };
+
+    static final UDAServiceType COMMON_INTERFACE_CONFIG_TYPE =
+            new UDAServiceType("WANCommonInterfaceConfig", 1);
+
+    /**
+     * Firewall service of IGD:2 gateways we can open IPv6 pinholes on
+     */
+    static final UDAServiceType FIREWALL_CONTROL_TYPE =
+            new UDAServiceType("WANIPv6FirewallControl", 1);
+
+    private static final ServiceType[] GATEWAY_SERVICE_TYPES = {
+            CONNECTION_SERVICE_TYPES[0],
+            CONNECTION_SERVICE_TYPES[1],
+            CONNECTION_SERVICE_TYPES[2],
+            COMMON_INTERFACE_CONFIG_TYPE,
+            FIREWALL_CONTROL_TYPE
+    };
+
+    @Override
+    public ServiceType[] getExclusiveServiceTypes() {
+        return GATEWAY_SERVICE_TYPES;
+    }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.support.model.PortMapping;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import freenet.support.Ticker;
+
+/**
+ * Renews each (connection service, port mapping) pair shortly before its lease lapses. The
+ * renewal time is jittered so mappings created together don't all renew at the same moment.
+ * All leases share one timed job on the ticker, which is always armed for the earliest renewal,
+ * so renewals can never be queued twice.
+ */
+class LeaseScheduler {
+
+    /**
+     * Renew at this fraction of the lease at the earliest
+     */
+    private static final double RENEW_AT = 0.75;
+    /**
+     * Plus up to this fraction of the lease at random
+     */
+    private static final double JITTER = 0.1;
+
+    interface Renewer {
+
+        void renew(Service connectionService, PortMapping portMapping);
+    }
+
+    private static class Lease implements Comparable<Lease> {
+        final Service service;
+        final String key;
+        final PortMapping portMapping;
+        final long renewAt;
+        final long sequence;
+
+        Lease(Service service, String key, PortMapping portMapping, long renewAt, long sequence) {
+            this.service = service;
+            this.key = key;
+            this.portMapping = portMapping;
+            this.renewAt = renewAt;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Lease o) {
+            if (renewAt != o.renewAt) {
+                return renewAt < o.renewAt ? -1 : 1;
+            }
+            return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+        }
+    }
+
+    private final Ticker ticker;
+    private final Renewer renewer;
+    private final Random random = new Random();
+
+    /**
+     * Leases ordered by renewal time
+     */
+    private final TreeSet<Lease> queue = new TreeSet<>();
+    private final Map<Service, Map<String, Lease>> leases = new HashMap<>();
+    private long sequence = 0;
+    /**
+     * When the ticker job is due, or {@link Long#MAX_VALUE} if it isn't queued
+     */
+    private long armedAt = Long.MAX_VALUE;
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            renewDue();
+        }
+    };
+
+    LeaseScheduler(Ticker ticker, Renewer renewer) {
+        this.ticker = ticker;
+        this.renewer = renewer;
+    }
+
+    /**
+     * Schedule the renewal of a mapping which the gateway just confirmed. Replaces any earlier
+     * schedule of the same mapping. Permanent mappings (lease 0) are not scheduled.
+     */
+    synchronized void schedule(Service connectionService, PortMapping portMapping) {
+        String key = PortMappingReconciler.key(portMapping);
+        cancel(connectionService, key);
+
+        long leaseMillis = portMapping.getLeaseDurationSeconds() == null ? 0 :
+                portMapping.getLeaseDurationSeconds().getValue() * 1000;
+        if (leaseMillis <= 0) {
+            return;
+        }
+
+        long renewAt = System.currentTimeMillis() +
+                (long) (leaseMillis * (RENEW_AT + random.nextDouble() * JITTER));
+        Lease lease = new Lease(connectionService, key, portMapping, renewAt, sequence++);
+
+        Map<String, Lease> forService = leases.get(connectionService);
+        if (forService == null) {
+            forService = new HashMap<>();
+            leases.put(connectionService, forService);
+        }
+        forService.put(key, lease);
+        queue.add(lease);
+
+        arm();
+    }
+
+    synchronized void cancel(Service connectionService, PortMapping portMapping) {
+        cancel(connectionService, PortMappingReconciler.key(portMapping));
+    }
+
+    synchronized void cancelAll(Service connectionService) {
+        Map<String, Lease> forService = leases.remove(connectionService);
+        if (forService != null) {
+            queue.removeAll(forService.values());
+        }
+    }
+
+    synchronized void shutdown() {
+        ticker.removeQueuedJob(tick);
+        armedAt = Long.MAX_VALUE;
+        queue.clear();
+        leases.clear();
+    }
+
+    private void cancel(Service connectionService, String key) {
+        Map<String, Lease> forService = leases.get(connectionService);
+        if (forService == null) {
+            return;
+        }
+        Lease lease = forService.remove(key);
+        if (lease != null) {
+            queue.remove(lease);
+        }
+        if (forService.isEmpty()) {
+            leases.remove(connectionService);
+        }
+    }
+
+    /**
+     * Make sure the ticker job is due no later than the earliest renewal. Caller holds the lock.
+     */
+    private void arm() {
+        if (queue.isEmpty()) {
+            return;
+        }
+        long first = queue.first().renewAt;
+        if (first < armedAt) {
+            ticker.removeQueuedJob(tick);
+            ticker.queueTimedJob(tick, "UPnP2 lease renewal",
+                    Math.max(0, first - System.currentTimeMillis()), false, true);
+            armedAt = first;
+        }
+    }
+
+    private void renewDue() {
+        List<Lease> due = new ArrayList<>();
+        synchronized (this) {
+            armedAt = Long.MAX_VALUE;
+            long now = System.currentTimeMillis();
+            while (!queue.isEmpty() && queue.first().renewAt <= now) {
+                Lease lease = queue.pollFirst();
+                cancel(lease.service, lease.key);
+                due.add(lease);
+            }
+            arm();
+        }
+
+        // The renewer reschedules the mapping once the gateway confirmed it
+        for (Lease lease : due) {
+            renewer.renew(lease.service, lease.portMapping);
+        }
+    }
+
+}
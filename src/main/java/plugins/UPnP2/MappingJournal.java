@@ -0,0 +1,146 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.model.types.UDN;
+import org.fourthline.cling.support.model.PortMapping;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import freenet.support.Logger;
+
+/**
+ * Every port mapping we created on each gateway, kept in the node's directory. Mappings are
+ * written down before they are added and only dropped once they are deleted, so after a crash
+ * the journal still lists the ones left behind in the routers.
+ */
+class MappingJournal {
+
+    static final String FILE_NAME = "UPnP2-mappings.properties";
+
+    /**
+     * Keys of the mappings on each uplink, as in {@link PortMappingReconciler#key(PortMapping)},
+     * by {@link Gateway#getUplink()}
+     */
+    private final Map<String, Set<String>> mappings = new HashMap<>();
+    private final PropertiesFile propertiesFile;
+
+    /**
+     * @param file     Where the journal is kept, or null to keep it in memory only
+     * @param executor Writes the file
+     */
+    MappingJournal(File file, Executor executor) {
+        propertiesFile = new PropertiesFile(file, executor, "Port mappings created by UPnP2") {
+            @Override
+            protected Properties snapshot() {
+                Properties properties = new Properties();
+                synchronized (MappingJournal.this) {
+                    for (Map.Entry<String, Set<String>> entry : mappings.entrySet()) {
+                        StringBuilder sb = new StringBuilder();
+                        for (String key : entry.getValue()) {
+                            if (sb.length() > 0) {
+                                sb.append(',');
+                            }
+                            sb.append(key);
+                        }
+                        properties.setProperty(entry.getKey(), sb.toString());
+                    }
+                }
+                return properties;
+            }
+        };
+
+        Properties properties = propertiesFile.read();
+        for (String udn : properties.stringPropertyNames()) {
+            Set<String> keys = new HashSet<>();
+            for (String key : properties.getProperty(udn).split(",")) {
+                if (!key.isEmpty()) {
+                    keys.add(key);
+                }
+            }
+            if (!keys.isEmpty()) {
+                mappings.put(udn, keys);
+            }
+        }
+    }
+
+    /**
+     * Write a mapping down before it is added
+     */
+    void added(UDN gateway, PortMapping portMapping) {
+        synchronized (this) {
+            Set<String> keys = mappings.get(gateway.toString());
+            if (keys == null) {
+                keys = new HashSet<>();
+                mappings.put(gateway.toString(), keys);
+            }
+            if (!keys.add(PortMappingReconciler.key(portMapping))) {
+                return;
+            }
+        }
+        propertiesFile.save();
+    }
+
+    /**
+     * Drop a mapping which was deleted or never made it into the gateway
+     */
+    void removed(UDN gateway, PortMapping portMapping) {
+        synchronized (this) {
+            Set<String> keys = mappings.get(gateway.toString());
+            if (keys == null || !keys.remove(PortMappingReconciler.key(portMapping))) {
+                return;
+            }
+            if (keys.isEmpty()) {
+                mappings.remove(gateway.toString());
+            }
+        }
+        propertiesFile.save();
+    }
+
+    /**
+     * @return The mappings we created on a gateway and didn't delete
+     */
+    synchronized List<PortMapping> get(UDN gateway) {
+        List<PortMapping> portMappings = new ArrayList<>();
+        Set<String> keys = mappings.get(gateway.toString());
+        if (keys == null) {
+            return portMappings;
+        }
+        for (String key : keys) {
+            // protocol:externalPort:internalClient
+            String[] parts = key.split(":", 3);
+            try {
+                portMappings.add(new PortMapping(Integer.parseInt(parts[1]), parts[2],
+                        PortMapping.Protocol.valueOf(parts[0])));
+            } catch (RuntimeException e) {
+                Logger.warning(this, "Skipping invalid journal entry of " + gateway + ": " + key);
+            }
+        }
+        return portMappings;
+    }
+
+}
@@ -0,0 +1,267 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.message.UpnpResponse;
+import org.fourthline.cling.model.meta.Device;
+import org.fourthline.cling.model.meta.RemoteService;
+import org.fourthline.cling.model.meta.Service;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.support.HTMLEncoder;
+
+/**
+ * Latencies and outcomes of every UPnP action, per action and gateway, plus how long it took
+ * to find the first gateway and to get the first port mapped.
+ */
+class Metrics {
+
+    static final String GET_EXTERNAL_IP_ADDRESS = "GetExternalIPAddress";
+    static final String GET_STATUS_INFO = "GetStatusInfo";
+    static final String GET_SPECIFIC_PORT_MAPPING_ENTRY = "GetSpecificPortMappingEntry";
+    static final String GET_LIST_OF_PORT_MAPPINGS = "GetListOfPortMappings";
+    static final String GET_GENERIC_PORT_MAPPING_ENTRY = "GetGenericPortMappingEntry";
+    static final String ADD_PORT_MAPPING = "AddPortMapping";
+    static final String ADD_ANY_PORT_MAPPING = "AddAnyPortMapping";
+    static final String DELETE_PORT_MAPPING = "DeletePortMapping";
+    static final String DELETE_PORT_MAPPING_RANGE = "DeletePortMappingRange";
+    static final String ADD_PINHOLE = "AddPinhole";
+    static final String UPDATE_PINHOLE = "UpdatePinhole";
+    static final String DELETE_PINHOLE = "DeletePinhole";
+    static final String GET_LINK_LAYER_MAX_BIT_RATES = "GetLinkLayerMaxBitRates";
+    static final String GET_COMMON_LINK_PROPERTIES = "GetCommonLinkProperties";
+    static final String GET_TOTAL_BYTES_SENT = "GetTotalBytesSent";
+    static final String GET_TOTAL_BYTES_RECEIVED = "GetTotalBytesReceived";
+    /**
+     * Reading a gateway's whole port mapping table, however many actions that took
+     */
+    static final String PORT_MAPPING_TABLE = "Port mapping table";
+    static final String GENA_SUBSCRIBE = "GENA subscribe";
+    static final String GENA_RENEW = "GENA renew";
+    /**
+     * From the search, or from starting when we don't search, to the gateway being registered
+     */
+    static final String SSDP_DISCOVERY = "SSDP discovery";
+
+    enum Outcome {
+        SUCCESS, FAILURE, TIMEOUT
+    }
+
+    private static class ActionStats {
+        final String action;
+        final String gateway;
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final AtomicLong successes = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong timeouts = new AtomicLong();
+
+        ActionStats(String action, String gateway) {
+            this.action = action;
+            this.gateway = gateway;
+        }
+    }
+
+    private final ConcurrentHashMap<String, ActionStats> stats = new ConcurrentHashMap<>();
+    private final GatewayHealth health = new GatewayHealth();
+    private volatile long startedAt = System.nanoTime();
+    private final AtomicLong firstGateway = new AtomicLong(-1);
+    private final AtomicLong firstMapping = new AtomicLong(-1);
+
+    /**
+     * Restart the clock of {@link #SSDP_DISCOVERY} and the time-to-first measurements
+     */
+    void started() {
+        startedAt = System.nanoTime();
+    }
+
+    long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * Adaptive timeouts and circuit breakers of the gateways, fed by every recorded action
+     */
+    GatewayHealth getHealth() {
+        return health;
+    }
+
+    /**
+     * @param startNanos {@link System#nanoTime()} when the action was sent, or -1 to only count
+     *                   its outcome
+     */
+    void record(String action, String gateway, Outcome outcome, long startNanos) {
+        String key = action + '\t' + gateway;
+        ActionStats actionStats = stats.get(key);
+        if (actionStats == null) {
+            actionStats = new ActionStats(action, gateway);
+            ActionStats existing = stats.putIfAbsent(key, actionStats);
+            if (existing != null) {
+                actionStats = existing;
+            }
+        }
+
+        switch (outcome) {
+            case SUCCESS:
+                actionStats.successes.incrementAndGet();
+                break;
+            case FAILURE:
+                actionStats.failures.incrementAndGet();
+                break;
+            case TIMEOUT:
+                actionStats.timeouts.incrementAndGet();
+                break;
+        }
+        if (startNanos >= 0) {
+            long nanos = System.nanoTime() - startNanos;
+            actionStats.latencies.record(nanos);
+            if (isAction(action)) {
+                if (outcome == Outcome.TIMEOUT) {
+                    health.failed(gateway);
+                } else {
+                    health.answered(gateway, nanos);
+                }
+            }
+        }
+    }
+
+    void record(String action, Service service, Outcome outcome, long startNanos) {
+        record(action, gatewayOf(service.getDevice()), outcome, startNanos);
+    }
+
+    /**
+     * Record a failed action, telling timeouts from errors the gateway reported
+     */
+    void recordFailure(String action, ActionInvocation invocation, UpnpResponse operation,
+                       long startNanos) {
+        Service service = invocation.getAction().getService();
+        record(action, service, isTimeout(service, operation) ? Outcome.TIMEOUT :
+                Outcome.FAILURE, startNanos);
+    }
+
+    /**
+     * No response at all from a remote gateway means the request timed out or never got
+     * there. In-process services always answer.
+     */
+    static boolean isTimeout(Service service, UpnpResponse operation) {
+        return operation == null && service instanceof RemoteService;
+    }
+
+    /**
+     * Whether a measurement is of a single SOAP action rather than discovery, eventing or a
+     * series of actions
+     */
+    private static boolean isAction(String name) {
+        return !name.equals(SSDP_DISCOVERY) && !name.equals(PORT_MAPPING_TABLE)
+                && !name.equals(GENA_SUBSCRIBE) && !name.equals(GENA_RENEW);
+    }
+
+    void gatewayFound() {
+        firstGateway.compareAndSet(-1, System.nanoTime() - startedAt);
+    }
+
+    void mappingAdded() {
+        firstMapping.compareAndSet(-1, System.nanoTime() - startedAt);
+    }
+
+    static String gatewayOf(Device device) {
+        return Gateway.udnOf(device).getIdentifierString();
+    }
+
+    /**
+     * Machine readable dump. One line per measurement, tab separated, latencies in microseconds:
+     * <pre>
+     * first-gateway  &lt;microseconds or -1&gt;
+     * first-mapping  &lt;microseconds or -1&gt;
+     * action  &lt;action&gt;  &lt;gateway&gt;  &lt;successes&gt;  &lt;failures&gt;
+     *     &lt;timeouts&gt;  &lt;count&gt;  &lt;mean&gt;  &lt;p50&gt;  &lt;p90&gt;  &lt;p99&gt;
+     *     &lt;max&gt;
+     * </pre>
+     */
+    String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("first-gateway\t").append(micros(firstGateway.get())).append('\n');
+        sb.append("first-mapping\t").append(micros(firstMapping.get())).append('\n');
+        for (ActionStats s : sorted().values()) {
+            LatencyHistogram h = s.latencies;
+            sb.append("action\t").append(s.action).append('\t').append(s.gateway)
+                    .append('\t').append(s.successes.get())
+                    .append('\t').append(s.failures.get())
+                    .append('\t').append(s.timeouts.get())
+                    .append('\t').append(h.getCount())
+                    .append('\t').append(h.getMeanMicros())
+                    .append('\t').append(h.getPercentileMicros(0.5))
+                    .append('\t').append(h.getPercentileMicros(0.9))
+                    .append('\t').append(h.getPercentileMicros(0.99))
+                    .append('\t').append(h.getMaxMicros())
+                    .append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The same as {@link #dump()} as a HTML fragment, latencies in ms
+     */
+    String toHTML() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<p>Time to first gateway: ").append(millis(firstGateway.get()))
+                .append("<br>Time to first port mapping: ").append(millis(firstMapping.get()))
+                .append("</p>\n");
+        sb.append("<table><tr><th>Action</th><th>Gateway</th><th>Successes</th>" +
+                "<th>Failures</th><th>Timeouts</th><th>Mean</th><th>50%</th><th>90%</th>" +
+                "<th>99%</th><th>Max</th></tr>\n");
+        for (ActionStats s : sorted().values()) {
+            LatencyHistogram h = s.latencies;
+            sb.append("<tr><td>").append(HTMLEncoder.encode(s.action))
+                    .append("</td><td>").append(HTMLEncoder.encode(s.gateway))
+                    .append("</td><td>").append(s.successes.get())
+                    .append("</td><td>").append(s.failures.get())
+                    .append("</td><td>").append(s.timeouts.get())
+                    .append("</td><td>").append(millis(h, h.getMeanMicros()))
+                    .append("</td><td>").append(millis(h, h.getPercentileMicros(0.5)))
+                    .append("</td><td>").append(millis(h, h.getPercentileMicros(0.9)))
+                    .append("</td><td>").append(millis(h, h.getPercentileMicros(0.99)))
+                    .append("</td><td>").append(millis(h, h.getMaxMicros()))
+                    .append("</td></tr>\n");
+        }
+        sb.append("</table>\n");
+        return sb.toString();
+    }
+
+    private Map<String, ActionStats> sorted() {
+        return new TreeMap<>(stats);
+    }
+
+    private static long micros(long nanos) {
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static String millis(long nanos) {
+        return nanos < 0 ? "-" : String.format("%.1f ms", nanos / 1e6);
+    }
+
+    private static String millis(LatencyHistogram h, long micros) {
+        return h.getCount() == 0 ? "-" : String.format("%.1f", micros / 1e3);
+    }
+
+}
@@ -0,0 +1,353 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.support.model.PortMapping;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import freenet.pluginmanager.ForwardPort;
+import freenet.pluginmanager.ForwardPortCallback;
+import freenet.pluginmanager.ForwardPortStatus;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+import plugins.UPnP2.GatewayClient.ActionFailedException;
+import plugins.UPnP2.actions.AddPinhole;
+
+/**
+ * Keeps inbound IPv6 pinholes open on each gateway's WANIPv6FirewallControl service, the IPv6
+ * counterpart of {@link PortMappingReconciler}. Pinholes are described as {@link PortMapping}s
+ * whose internal client is our IPv6 address, so they share its keys and the
+ * {@link LeaseScheduler}. Open pinholes are kept alive with UpdatePinhole and closed on
+ * shutdown. The actions go through the {@link GatewayClient}, so a gateway whose circuit breaker
+ * is open fails them right away.
+ */
+class PinholeReconciler {
+
+    /**
+     * Milliseconds after which a gateway which refused to open pinholes is asked again, e.g.
+     * because its firewall was turned off and has been turned on since
+     */
+    private static final long REFUSED_RETRY_DELAY = Long.getLong(
+            "plugins.UPnP2.pinholeRetryDelay", TimeUnit.MINUTES.toMillis(30));
+    /**
+     * Milliseconds {@link #shutdown()} waits for all gateways to close their pinholes
+     */
+    private static final long SHUTDOWN_TIMEOUT = Long.getLong(
+            "plugins.UPnP2.pinholeShutdownTimeout", TimeUnit.SECONDS.toMillis(5));
+
+    private static class Pinhole {
+        final PortMapping pinhole;
+        final int uniqueId;
+
+        Pinhole(PortMapping pinhole, int uniqueId) {
+            this.pinhole = pinhole;
+            this.uniqueId = uniqueId;
+        }
+    }
+
+    /**
+     * What we know about the pinholes on one firewall service
+     */
+    private static class FirewallState {
+        /**
+         * Pinholes the gateway opened, by {@link PortMappingReconciler#key(PortMapping)}
+         */
+        final Map<String, Pinhole> open = new HashMap<>();
+        /**
+         * Keys of pinholes being opened, updated or closed
+         */
+        final Set<String> pending = new HashSet<>();
+        Map<PortMapping, ForwardPort> desired = new HashMap<>();
+        ForwardPortCallback cb;
+        /**
+         * Why the gateway refused to open pinholes, after which we don't ask it again until
+         * {@link #REFUSED_RETRY_DELAY} has passed
+         */
+        String refused;
+        long refusedAt;
+    }
+
+    private final GatewayClient client;
+    private final LeaseScheduler leaseScheduler;
+
+    private final ConcurrentHashMap<Service, FirewallState> states = new ConcurrentHashMap<>();
+
+    PinholeReconciler(GatewayClient client, Ticker ticker) {
+        this.client = client;
+        this.leaseScheduler = new LeaseScheduler(ticker, new LeaseScheduler.Renewer() {
+            @Override
+            public void renew(Service firewallService, PortMapping pinhole) {
+                PinholeReconciler.this.renew(firewallService, pinhole);
+            }
+        });
+    }
+
+    /**
+     * Open the desired pinholes which aren't open yet and close the open ones which aren't
+     * desired any more. This never blocks, statuses are reported through the callback as soon as
+     * they are known.
+     *
+     * @param desired Desired pinholes and the IPv6 forwards they are reported to Fred as
+     */
+    void reconcile(final Service firewallService, Map<PortMapping, ForwardPort> desired,
+                   final ForwardPortCallback cb) {
+
+        final FirewallState state = getState(firewallService);
+
+        Map<ForwardPort, ForwardPortStatus> known = new HashMap<>();
+        Map<PortMapping, ForwardPort> toOpen = new HashMap<>();
+        List<Pinhole> toClose = new ArrayList<>();
+
+        synchronized (state) {
+            state.desired = new HashMap<>(desired);
+            state.cb = cb;
+            if (state.refused != null
+                    && System.currentTimeMillis() - state.refusedAt >= REFUSED_RETRY_DELAY) {
+                state.refused = null;
+            }
+
+            Set<String> desiredKeys = new HashSet<>();
+            for (Map.Entry<PortMapping, ForwardPort> entry : desired.entrySet()) {
+                PortMapping pinhole = entry.getKey();
+                String key = PortMappingReconciler.key(pinhole);
+                desiredKeys.add(key);
+
+                if (state.refused != null) {
+                    known.put(entry.getValue(), new ForwardPortStatus(ForwardPortStatus
+                            .DEFINITE_FAILURE, state.refused, entry.getValue().portNumber));
+                } else if (state.open.containsKey(key)) {
+                    known.put(entry.getValue(), new ForwardPortStatus(ForwardPortStatus
+                            .MAYBE_SUCCESS, "", entry.getValue().portNumber));
+                } else if (state.pending.add(key)) {
+                    toOpen.put(pinhole, entry.getValue());
+                }
+            }
+
+            for (Map.Entry<String, Pinhole> entry : state.open.entrySet()) {
+                if (!desiredKeys.contains(entry.getKey()) && state.pending.add(entry.getKey())) {
+                    toClose.add(entry.getValue());
+                }
+            }
+        }
+
+        if (!known.isEmpty() && cb != null) {
+            cb.portForwardStatus(known);
+        }
+
+        for (Pinhole pinhole : toClose) {
+            close(firewallService, state, pinhole);
+        }
+
+        for (Map.Entry<PortMapping, ForwardPort> entry : toOpen.entrySet()) {
+            open(firewallService, state, entry.getKey(), entry.getValue(), cb);
+        }
+    }
+
+    /**
+     * Drop what we know about a firewall service, including a refusal, because its gateway
+     * went away or came back
+     */
+    void forget(Service firewallService) {
+        states.remove(firewallService);
+        leaseScheduler.cancelAll(firewallService);
+    }
+
+    /**
+     * Close every open pinhole, all at once. Blocks until the gateways answered or
+     * {@link #SHUTDOWN_TIMEOUT} passed. Pinholes of gateways which don't answer close by
+     * themselves once their leases run out.
+     */
+    void shutdown() {
+        leaseScheduler.shutdown();
+
+        List<CompletableFuture<Void>> closing = new ArrayList<>();
+        for (Map.Entry<Service, FirewallState> entry : states.entrySet()) {
+            List<Pinhole> open;
+            synchronized (entry.getValue()) {
+                open = new ArrayList<>(entry.getValue().open.values());
+                entry.getValue().open.clear();
+            }
+            for (final Pinhole pinhole : open) {
+                closing.add(client.deletePinhole(entry.getKey(), pinhole.uniqueId)
+                        .whenComplete((v, e) -> {
+                            if (e == null) {
+                                Logger.normal(this, "Pinhole closed: " + pinhole.pinhole);
+                            } else {
+                                Logger.warning(this, "Failed to close pinhole " +
+                                        pinhole.pinhole + ". Reason: " +
+                                        GatewayClient.failureOf(e).getMessage());
+                            }
+                        }));
+            }
+        }
+        states.clear();
+
+        GatewayClient.await(CompletableFuture.allOf(closing.toArray(
+                new CompletableFuture<?>[0])), SHUTDOWN_TIMEOUT);
+        int unanswered = 0;
+        for (CompletableFuture<Void> future : closing) {
+            if (!future.isDone()) {
+                unanswered++;
+            }
+        }
+        if (unanswered > 0) {
+            Logger.warning(this, unanswered + " pinholes weren't closed in time");
+        }
+    }
+
+    private void open(final Service firewallService, final FirewallState state,
+                      final PortMapping pinhole, final ForwardPort forwardPort,
+                      final ForwardPortCallback cb) {
+        final String key = PortMappingReconciler.key(pinhole);
+
+        Logger.normal(this, "Opening pinhole: " + pinhole);
+
+        client.addPinhole(firewallService, pinhole).whenComplete((uniqueId, e) -> {
+            if (e == null) {
+                Logger.normal(this, "Pinhole opened: " + pinhole);
+                synchronized (state) {
+                    state.pending.remove(key);
+                    state.open.put(key, new Pinhole(pinhole, uniqueId));
+                }
+                leaseScheduler.schedule(firewallService, pinhole);
+
+                report(cb, forwardPort, new ForwardPortStatus(ForwardPortStatus.MAYBE_SUCCESS,
+                        "", forwardPort.portNumber));
+                return;
+            }
+
+            ActionFailedException failure = GatewayClient.failureOf(e);
+            Logger.warning(this, "Failed to open pinhole: " + pinhole);
+            Logger.warning(this, "Reason: " + failure.getMessage());
+            synchronized (state) {
+                state.pending.remove(key);
+                if (failure.getErrorCode() == AddPinhole.FIREWALL_DISABLED
+                        || failure.getErrorCode() == AddPinhole.PINHOLE_NOT_ALLOWED) {
+                    state.refused = failure.getMessage();
+                    state.refusedAt = System.currentTimeMillis();
+                }
+            }
+
+            // Unanswered, it may be open anyway and is asked for again on the next reconcile
+            report(cb, forwardPort, new ForwardPortStatus(failure.isAnswered() ?
+                    ForwardPortStatus.DEFINITE_FAILURE : ForwardPortStatus.PROBABLE_FAILURE,
+                    failure.getMessage(), forwardPort.portNumber));
+        });
+    }
+
+    private void close(final Service firewallService, final FirewallState state,
+                       final Pinhole pinhole) {
+        final String key = PortMappingReconciler.key(pinhole.pinhole);
+        leaseScheduler.cancel(firewallService, pinhole.pinhole);
+
+        Logger.normal(this, "Closing pinhole: " + pinhole.pinhole);
+
+        client.deletePinhole(firewallService, pinhole.uniqueId).whenComplete((v, e) -> {
+            if (e != null) {
+                // It closes by itself once its lease runs out
+                Logger.warning(this, "Failed to close pinhole " + pinhole.pinhole +
+                        ". Reason: " + GatewayClient.failureOf(e).getMessage());
+            }
+            synchronized (state) {
+                state.pending.remove(key);
+                state.open.remove(key);
+            }
+        });
+    }
+
+    /**
+     * Restart a pinhole's lease. If that fails it is opened again.
+     */
+    private void renew(final Service firewallService, PortMapping pm) {
+        final FirewallState state = states.get(firewallService);
+        if (state == null) {
+            return;
+        }
+        final String key = PortMappingReconciler.key(pm);
+        final Pinhole pinhole;
+        synchronized (state) {
+            pinhole = state.open.get(key);
+            if (pinhole == null || !state.pending.add(key)) {
+                return;
+            }
+        }
+
+        client.updatePinhole(firewallService, pinhole.uniqueId,
+                pinhole.pinhole.getLeaseDurationSeconds()).whenComplete((v, e) -> {
+                    if (e == null) {
+                        synchronized (state) {
+                            state.pending.remove(key);
+                        }
+                        leaseScheduler.schedule(firewallService, pinhole.pinhole);
+                        return;
+                    }
+
+                    Logger.warning(this, "Failed to update pinhole " + pinhole.pinhole +
+                            ". Reason: " + GatewayClient.failureOf(e).getMessage());
+                    lost(firewallService, state, key);
+                });
+    }
+
+    /**
+     * A pinhole couldn't be renewed, so forget it and reconcile to open it again
+     */
+    private void lost(Service firewallService, FirewallState state, String key) {
+        Map<PortMapping, ForwardPort> desired;
+        ForwardPortCallback cb;
+        synchronized (state) {
+            state.pending.remove(key);
+            state.open.remove(key);
+            desired = state.desired;
+            cb = state.cb;
+        }
+        reconcile(firewallService, desired, cb);
+    }
+
+    private FirewallState getState(Service firewallService) {
+        FirewallState state = states.get(firewallService);
+        if (state == null) {
+            state = new FirewallState();
+            FirewallState existing = states.putIfAbsent(firewallService, state);
+            if (existing != null) {
+                state = existing;
+            }
+        }
+        return state;
+    }
+
+    private static void report(ForwardPortCallback cb, ForwardPort forwardPort,
+                               ForwardPortStatus status) {
+        if (cb == null) {
+            return;
+        }
+        Map<ForwardPort, ForwardPortStatus> statuses = new HashMap<>();
+        statuses.put(forwardPort, status);
+        cb.portForwardStatus(statuses);
+    }
+
+}
@@ -0,0 +1,875 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+import org.fourthline.cling.model.types.UnsignedIntegerTwoBytes;
+import org.fourthline.cling.support.model.PortMapping;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import freenet.support.Logger;
+import plugins.UPnP2.GatewayClient.ActionFailedException;
+import plugins.UPnP2.actions.AddAnyPortMapping;
+import plugins.UPnP2.actions.DeletePortMappingRange;
+import plugins.UPnP2.actions.PortMappingTable;
+
+/**
+ * Runs the probe &rarr; add &rarr; report flow of port mappings, their renewal and their deletion
+ * on one connection service asynchronously. At most {@code maxInFlight} mappings are being worked
+ * on at a time so slow routers aren't flooded, the rest wait in a queue.
+ * <p>
+ * Whether a port is already mapped is looked up in a snapshot of the gateway's whole mapping
+ * table, so checking all of Fred's ports costs one read of the table rather than one
+ * GetSpecificPortMappingEntry each. Gateways whose table can't be read are asked port by port.
+ * <p>
+ * The actions go through the {@link GatewayClient}, so while the gateway's circuit breaker is
+ * open queued jobs fail right away instead of each waiting for a timeout.
+ * <p>
+ * On IGD:2 gateways a taken port isn't a failure: AddAnyPortMapping has the gateway pick a free
+ * one, and the mapping reported to the listener carries the port it picked. IGD:1 gateways can't
+ * pick, so there a few alternate ports are looked up at a time and the first free one is claimed.
+ */
+class PortMappingPipeline {
+
+    /**
+     * UPnP error code of routers which refuse mappings with a lease duration
+     */
+    private static final int ONLY_PERMANENT_LEASES_SUPPORTED = 725;
+    /**
+     * UPnP error code for a mapping which doesn't exist
+     */
+    private static final int NO_SUCH_ENTRY_IN_ARRAY = 714;
+    /**
+     * UPnP error code of IGD:1 gateways for an external port mapped to another host
+     */
+    private static final int CONFLICT_IN_MAPPING_ENTRY = 718;
+    /**
+     * Milliseconds a snapshot of the mapping table is used for lookups
+     */
+    private static final long TABLE_TTL = Long.getLong("plugins.UPnP2.mappingTableTTL",
+            TimeUnit.SECONDS.toMillis(30));
+    /**
+     * Milliseconds lookups go port by port after reading the table failed
+     */
+    private static final long TABLE_RETRY_DELAY = TimeUnit.MINUTES.toMillis(5);
+    /**
+     * External ports tried on IGD:1 gateways when the one asked for is mapped to another host,
+     * as a comma separated list of ports and ranges such as "9000-9015"
+     */
+    private static final int[] ALTERNATE_PORTS = parsePorts(
+            System.getProperty("plugins.UPnP2.alternatePorts", ""));
+    /**
+     * Without {@link #ALTERNATE_PORTS}, how many of the ports following the one asked for are
+     * tried. 0 turns the search off.
+     */
+    private static final int ALTERNATE_PORT_COUNT = Integer.getInteger(
+            "plugins.UPnP2.alternatePortCount", 16);
+    /**
+     * How many alternate ports are looked up at a time
+     */
+    private static final int ALTERNATE_PORTS_IN_FLIGHT = Math.max(1, Integer.getInteger(
+            "plugins.UPnP2.alternatePortsInFlight", 4));
+
+    /**
+     * Told about the outcome of each mapping as soon as it is known
+     */
+    interface Listener {
+
+        /**
+         * @param portMapping The mapping as the gateway made it. Its external port may differ
+         *                    from the one asked for.
+         */
+        void succeeded(PortMapping portMapping);
+
+        /**
+         * @param refused Whether the gateway answered with an error. Otherwise the action timed
+         *                out or was never sent, and the gateway may have made the mapping anyway.
+         */
+        void failed(PortMapping portMapping, String reason, boolean refused);
+    }
+
+    /**
+     * Told what the gateway has mapped on a port
+     */
+    private interface Lookup {
+
+        /**
+         * @param internalClient Host the port is mapped to, or null if the gateway didn't say
+         */
+        void found(String internalClient);
+
+        void notFound();
+
+        void failed(String reason);
+    }
+
+    private static class PendingLookup {
+        final PortMapping portMapping;
+        final Lookup lookup;
+
+        PendingLookup(PortMapping portMapping, Lookup lookup) {
+            this.portMapping = portMapping;
+            this.lookup = lookup;
+        }
+    }
+
+    private enum Kind {
+        ADD, RENEW, DELETE, DELETE_IF_OURS, DELETE_RANGE
+    }
+
+    private static class Job {
+        final PortMapping portMapping;
+        final Listener listener;
+        final Kind kind;
+        /**
+         * Mappings on consecutive ports of {@link Kind#DELETE_RANGE}, starting with
+         * {@link #portMapping}
+         */
+        final List<PortMapping> range;
+
+        Job(PortMapping portMapping, Listener listener, Kind kind) {
+            this(portMapping, listener, kind, null);
+        }
+
+        Job(PortMapping portMapping, Listener listener, Kind kind, List<PortMapping> range) {
+            this.portMapping = portMapping;
+            this.listener = listener;
+            this.kind = kind;
+            this.range = range;
+        }
+    }
+
+    private final Service connectionService;
+    private final GatewayClient client;
+    private final int maxInFlight;
+
+    private final Queue<Job> queue = new ArrayDeque<>();
+    private int inFlight = 0;
+    /**
+     * Set once the router refused a lease duration, after which all mappings are permanent
+     */
+    private volatile boolean permanentLeasesOnly = false;
+
+    // Guarded by this
+    private PortMappingTable table;
+    private long tableLoadedAt;
+    private long tableFailedAt = Long.MIN_VALUE;
+    private boolean tableLoading = false;
+    /**
+     * Lookups waiting for the table being read
+     */
+    private final List<PendingLookup> waitingForTable = new ArrayList<>();
+
+    PortMappingPipeline(Service connectionService, GatewayClient client, int maxInFlight) {
+        this.connectionService = connectionService;
+        this.client = client;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Queue a mapping to be added. This never blocks.
+     */
+    void submit(PortMapping portMapping, Listener listener) {
+        enqueue(new Job(portMapping, listener, Kind.ADD));
+    }
+
+    /**
+     * Queue a mapping we created to be added again, which restarts its lease. Unlike
+     * {@link #submit} this skips the probe. This never blocks.
+     */
+    void submitRenew(PortMapping portMapping, Listener listener) {
+        enqueue(new Job(portMapping, listener, Kind.RENEW));
+    }
+
+    /**
+     * Queue a mapping to be deleted. This never blocks.
+     */
+    void submitDelete(PortMapping portMapping, Listener listener) {
+        enqueue(new Job(portMapping, listener, Kind.DELETE));
+    }
+
+    /**
+     * Queue a mapping to be deleted if it still points at our internal client. One which is gone
+     * or belongs to another host counts as deleted. This never blocks.
+     */
+    void submitDeleteIfOurs(PortMapping portMapping, Listener listener) {
+        enqueue(new Job(portMapping, listener, Kind.DELETE_IF_OURS));
+    }
+
+    /**
+     * Queue mappings left behind by an earlier run to be deleted if they are still ours. Where
+     * the gateway has DeletePortMappingRange, runs of consecutive ports go in a single action.
+     * The listener hears about each mapping. This never blocks.
+     */
+    void submitDeleteLeftovers(List<PortMapping> portMappings, Listener listener) {
+        if (!DeletePortMappingRange.isSupported(connectionService)) {
+            for (PortMapping pm : portMappings) {
+                submitDeleteIfOurs(pm, listener);
+            }
+            return;
+        }
+
+        List<PortMapping> sorted = new ArrayList<>(portMappings);
+        Collections.sort(sorted, new Comparator<PortMapping>() {
+            @Override
+            public int compare(PortMapping a, PortMapping b) {
+                int c = a.getProtocol().compareTo(b.getProtocol());
+                return c != 0 ? c : Long.compare(a.getExternalPort().getValue(),
+                        b.getExternalPort().getValue());
+            }
+        });
+
+        List<PortMapping> run = new ArrayList<>();
+        for (PortMapping pm : sorted) {
+            if (!run.isEmpty()) {
+                PortMapping last = run.get(run.size() - 1);
+                if (last.getProtocol() != pm.getProtocol() || pm.getExternalPort().getValue()
+                        != last.getExternalPort().getValue() + 1) {
+                    submitRun(run, listener);
+                    run = new ArrayList<>();
+                }
+            }
+            run.add(pm);
+        }
+        if (!run.isEmpty()) {
+            submitRun(run, listener);
+        }
+    }
+
+    private void submitRun(List<PortMapping> run, Listener listener) {
+        if (run.size() == 1) {
+            // Only a lone port can be checked before it's deleted
+            submitDeleteIfOurs(run.get(0), listener);
+        } else {
+            enqueue(new Job(run.get(0), listener, Kind.DELETE_RANGE, run));
+        }
+    }
+
+    private void enqueue(Job job) {
+        synchronized (this) {
+            queue.add(job);
+        }
+        pump();
+    }
+
+    /**
+     * Start queued jobs while there is room
+     */
+    private void pump() {
+        while (true) {
+            Job job;
+            synchronized (this) {
+                if (inFlight >= maxInFlight || queue.isEmpty()) {
+                    return;
+                }
+                job = queue.poll();
+                inFlight++;
+            }
+            switch (job.kind) {
+                case ADD:
+                    probe(job);
+                    break;
+                case RENEW:
+                    add(job);
+                    break;
+                case DELETE:
+                    delete(job);
+                    break;
+                case DELETE_IF_OURS:
+                    probeBeforeDelete(job);
+                    break;
+                case DELETE_RANGE:
+                    deleteRange(job);
+                    break;
+            }
+        }
+    }
+
+    private void done() {
+        synchronized (this) {
+            inFlight--;
+        }
+        pump();
+    }
+
+    private void probe(final Job job) {
+        final PortMapping pm = job.portMapping;
+
+        Logger.normal(this, "Checking if the Port is already Mapped: " + pm);
+
+        lookup(pm, new Lookup() {
+            @Override
+            public void found(String internalClient) {
+                if (internalClient == null || pm.getInternalClient().equals(internalClient)) {
+                    // Ours, but we don't know how much of its lease is left. Add it again.
+                    Logger.normal(this, "Port is already Mapped: " + pm);
+                    add(job);
+                    return;
+                }
+
+                if (AddAnyPortMapping.isSupported(connectionService)) {
+                    Logger.normal(this, "Port is already Mapped to " + internalClient + ", " +
+                            "letting the gateway pick another: " + pm);
+                    addAny(job);
+                    return;
+                }
+
+                if (searchAlternatePort(job, internalClient)) {
+                    return;
+                }
+
+                Logger.warning(this, "Port is already Mapped to " + internalClient + ": " + pm);
+                try {
+                    job.listener.failed(pm, "Port is already mapped to " + internalClient,
+                            true);
+                } finally {
+                    done();
+                }
+            }
+
+            @Override
+            public void notFound() {
+                Logger.normal(this, "Port is not Mapped: " + pm);
+                addAny(job);
+            }
+
+            @Override
+            public void failed(String reason) {
+                // The add will tell
+                addAny(job);
+            }
+        });
+    }
+
+    private void probeBeforeDelete(final Job job) {
+        final PortMapping pm = job.portMapping;
+
+        lookup(pm, new Lookup() {
+            @Override
+            public void found(String internalClient) {
+                if (internalClient == null || pm.getInternalClient().equals(internalClient)) {
+                    delete(job);
+                    return;
+                }
+
+                Logger.normal(this, "Port is now mapped to " + internalClient + ", leaving " +
+                        "it: " + pm);
+                try {
+                    job.listener.succeeded(pm);
+                } finally {
+                    done();
+                }
+            }
+
+            @Override
+            public void notFound() {
+                Logger.normal(this, "Port is not Mapped any more: " + pm);
+                try {
+                    job.listener.succeeded(pm);
+                } finally {
+                    done();
+                }
+            }
+
+            @Override
+            public void failed(String reason) {
+                try {
+                    job.listener.failed(pm, reason, false);
+                } finally {
+                    done();
+                }
+            }
+        });
+    }
+
+    /**
+     * Find out what the gateway has mapped on the external port and protocol of a mapping.
+     * Uses the snapshot of the table while it is fresh, otherwise waits for it to be read again.
+     * Asks for the single entry if the table can't be read.
+     */
+    private void lookup(PortMapping pm, Lookup lookup) {
+        PortMappingTable current = null;
+        boolean load = false;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (!GatewayClient.isPortMappingTableSupported(connectionService)
+                    || now - tableFailedAt < TABLE_RETRY_DELAY) {
+                // Port by port below
+            } else if (table != null && now - tableLoadedAt < TABLE_TTL) {
+                current = table;
+            } else {
+                waitingForTable.add(new PendingLookup(pm, lookup));
+                load = !tableLoading;
+                tableLoading = true;
+                if (!load) {
+                    return;
+                }
+            }
+        }
+
+        if (current != null) {
+            lookupInTable(current, pm, lookup);
+        } else if (load) {
+            loadTable();
+        } else {
+            lookupEntry(pm, lookup);
+        }
+    }
+
+    private static void lookupInTable(PortMappingTable table, PortMapping pm, Lookup lookup) {
+        PortMapping entry = table.get(pm);
+        if (entry == null) {
+            lookup.notFound();
+        } else {
+            lookup.found(entry.getInternalClient());
+        }
+    }
+
+    private void loadTable() {
+        Logger.minor(this, "Reading the port mapping table of: " + connectionService);
+
+        client.getPortMappingTable(connectionService).whenComplete((loaded, e) -> {
+            if (e != null) {
+                Logger.normal(this, "Unable to read the port mapping table, checking ports one " +
+                        "by one. Reason: " + GatewayClient.failureOf(e).getMessage());
+            } else {
+                Logger.normal(this, "Port mapping table has " + loaded.size() + " entries: " +
+                        connectionService);
+            }
+            List<PendingLookup> waiting;
+            synchronized (PortMappingPipeline.this) {
+                table = loaded;
+                if (loaded != null) {
+                    tableLoadedAt = System.currentTimeMillis();
+                } else {
+                    tableFailedAt = System.currentTimeMillis();
+                }
+                tableLoading = false;
+                waiting = new ArrayList<>(waitingForTable);
+                waitingForTable.clear();
+            }
+            for (PendingLookup pending : waiting) {
+                if (loaded != null) {
+                    lookupInTable(loaded, pending.portMapping, pending.lookup);
+                } else {
+                    lookupEntry(pending.portMapping, pending.lookup);
+                }
+            }
+        });
+    }
+
+    /**
+     * Ask the gateway for the single entry with GetSpecificPortMappingEntry
+     */
+    private void lookupEntry(PortMapping pm, final Lookup lookup) {
+        client.getSpecificPortMappingEntry(connectionService, pm).whenComplete(
+                (internalClient, e) -> {
+                    if (e == null) {
+                        lookup.found(internalClient);
+                    } else if (GatewayClient.failureOf(e).getErrorCode()
+                            == NO_SUCH_ENTRY_IN_ARRAY) {
+                        lookup.notFound();
+                    } else {
+                        lookup.failed(GatewayClient.failureOf(e).getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Add a mapping with AddAnyPortMapping if the gateway has it, so a port taken meanwhile
+     * doesn't fail it. Otherwise the same as {@link #add}.
+     */
+    private void addAny(final Job job) {
+        if (!AddAnyPortMapping.isSupported(connectionService)) {
+            add(job);
+            return;
+        }
+
+        final PortMapping pm = job.portMapping;
+
+        Logger.normal(this, "Adding Port Mapping on any port: " + pm);
+
+        client.addAnyPortMapping(connectionService, pm).whenComplete((reservedPort, e) -> {
+            if (e != null) {
+                ActionFailedException failure = GatewayClient.failureOf(e);
+                Logger.warning(this, "Failed to add port mapping: " + pm);
+                Logger.warning(this, "Reason: " + failure.getMessage());
+                try {
+                    job.listener.failed(pm, failure.getMessage(), failure.isAnswered());
+                } finally {
+                    done();
+                }
+                return;
+            }
+
+            PortMapping added = pm;
+            if (reservedPort.intValue() != pm.getExternalPort().getValue()) {
+                added = withExternalPort(pm, reservedPort);
+            }
+            Logger.normal(this, "Port mapping added: " + added);
+            try {
+                job.listener.succeeded(added);
+            } finally {
+                done();
+            }
+        });
+    }
+
+    private void add(final Job job) {
+        final PortMapping pm = job.portMapping;
+
+        if (permanentLeasesOnly) {
+            pm.setLeaseDurationSeconds(new UnsignedIntegerFourBytes(0));
+        }
+
+        Logger.normal(this, "Adding Port Mapping: " + pm);
+
+        client.addPortMapping(connectionService, pm).whenComplete((v, e) -> {
+            if (e == null) {
+                Logger.normal(this, "Port mapping added: " + pm);
+                try {
+                    job.listener.succeeded(pm);
+                } finally {
+                    done();
+                }
+                return;
+            }
+
+            ActionFailedException failure = GatewayClient.failureOf(e);
+            if (failure.getErrorCode() == ONLY_PERMANENT_LEASES_SUPPORTED
+                    && pm.getLeaseDurationSeconds().getValue() != 0) {
+                Logger.normal(this, "Only permanent leases supported by: " + connectionService);
+                permanentLeasesOnly = true;
+                add(job);
+                return;
+            }
+            if (failure.getErrorCode() == CONFLICT_IN_MAPPING_ENTRY && job.kind == Kind.ADD
+                    && searchAlternatePort(job, null)) {
+                // Taken since the lookup, or the lookup failed
+                return;
+            }
+
+            Logger.warning(this, "Failed to add port mapping: " + pm);
+            Logger.warning(this, "Reason: " + failure.getMessage());
+            try {
+                job.listener.failed(pm, failure.getMessage(), failure.isAnswered());
+            } finally {
+                done();
+            }
+        });
+    }
+
+    private void delete(final Job job) {
+        final PortMapping pm = job.portMapping;
+
+        Logger.normal(this, "Deleting Port Mapping: " + pm);
+
+        client.deletePortMapping(connectionService, pm).whenComplete((v, e) -> {
+            if (e == null) {
+                Logger.normal(this, "Port mapping deleted: " + pm);
+                try {
+                    job.listener.succeeded(pm);
+                } finally {
+                    done();
+                }
+                return;
+            }
+
+            ActionFailedException failure = GatewayClient.failureOf(e);
+            Logger.warning(this, "Failed to delete port mapping: " + pm);
+            Logger.warning(this, "Reason: " + failure.getMessage());
+            try {
+                job.listener.failed(pm, failure.getMessage(), failure.isAnswered());
+            } finally {
+                done();
+            }
+        });
+    }
+
+    private void deleteRange(final Job job) {
+        final List<PortMapping> range = job.range;
+        PortMapping first = range.get(0);
+        int startPort = first.getExternalPort().getValue().intValue();
+        int endPort = range.get(range.size() - 1).getExternalPort().getValue().intValue();
+
+        Logger.normal(this, "Deleting Port Mappings " + first.getProtocol() + " " + startPort +
+                "-" + endPort);
+
+        client.deletePortMappingRange(connectionService, startPort, endPort, first.getProtocol())
+                .whenComplete((v, e) -> {
+                    if (e != null && GatewayClient.failureOf(e).getErrorCode()
+                            != DeletePortMappingRange.PORT_MAPPING_NOT_FOUND) {
+                        Logger.warning(this, "Failed to delete port mapping range, deleting " +
+                                "them one by one. Reason: " +
+                                GatewayClient.failureOf(e).getMessage());
+                        try {
+                            for (PortMapping pm : range) {
+                                submitDeleteIfOurs(pm, job.listener);
+                            }
+                        } finally {
+                            done();
+                        }
+                        return;
+                    }
+
+                    // Deleted, or already gone
+                    try {
+                        for (PortMapping pm : range) {
+                            job.listener.succeeded(pm);
+                        }
+                    } finally {
+                        done();
+                    }
+                });
+    }
+
+    /**
+     * Start looking for a free external port for a mapping whose port is mapped to another host,
+     * unless the search is turned off.
+     *
+     * @param holder Host the port is mapped to, or null if unknown
+     * @return Whether the search took over the job
+     */
+    private boolean searchAlternatePort(Job job, String holder) {
+        List<Integer> candidates = alternatePorts(
+                job.portMapping.getExternalPort().getValue().intValue());
+        if (candidates.isEmpty()) {
+            return false;
+        }
+
+        Logger.normal(this, "Port is already Mapped" + (holder == null ? "" : " to " + holder) +
+                ", trying " + candidates.size() + " other ports: " + job.portMapping);
+        new AlternatePortSearch(job, holder, candidates).next();
+        return true;
+    }
+
+    /**
+     * Looks for a free external port on an IGD:1 gateway. Up to
+     * {@link #ALTERNATE_PORTS_IN_FLIGHT} candidates are looked up at a time, from the table
+     * snapshot where there is one, and the first one found free is claimed with AddPortMapping.
+     * If another host claimed it meanwhile the search goes on. It runs in the slot of the job it
+     * resolves and ends it.
+     */
+    private class AlternatePortSearch {
+        private final Job job;
+        private final String holder;
+        private final Queue<Integer> candidates;
+        /**
+         * Ports found free which weren't claimed yet
+         */
+        private final Queue<Integer> free = new ArrayDeque<>();
+        private int lookingUp = 0;
+        private boolean claiming = false;
+        private boolean finished = false;
+        /**
+         * Set once a claim went unanswered, so that port may be ours after all
+         */
+        private boolean claimUnanswered = false;
+
+        AlternatePortSearch(Job job, String holder, List<Integer> candidates) {
+            this.job = job;
+            this.holder = holder;
+            this.candidates = new ArrayDeque<>(candidates);
+        }
+
+        /**
+         * Claim a free port if none is being claimed, otherwise look up more candidates while
+         * there is room. Fails the job once every candidate is taken.
+         */
+        void next() {
+            Integer toClaim = null;
+            List<Integer> toLookUp = new ArrayList<>();
+            synchronized (this) {
+                if (finished || claiming) {
+                    return;
+                }
+                if (!free.isEmpty()) {
+                    toClaim = free.poll();
+                    claiming = true;
+                } else {
+                    while (lookingUp < ALTERNATE_PORTS_IN_FLIGHT && !candidates.isEmpty()) {
+                        toLookUp.add(candidates.poll());
+                        lookingUp++;
+                    }
+                    finished = lookingUp == 0;
+                }
+            }
+
+            if (toClaim != null) {
+                claim(withExternalPort(job.portMapping, toClaim));
+            } else if (toLookUp.isEmpty()) {
+                if (finished) {
+                    exhausted();
+                }
+            } else {
+                for (int port : toLookUp) {
+                    lookUp(port);
+                }
+            }
+        }
+
+        private void lookUp(final int port) {
+            lookup(withExternalPort(job.portMapping, port), new Lookup() {
+                @Override
+                public void found(String internalClient) {
+                    lookedUp(port, false);
+                }
+
+                @Override
+                public void notFound() {
+                    lookedUp(port, true);
+                }
+
+                @Override
+                public void failed(String reason) {
+                    // The add will tell
+                    lookedUp(port, true);
+                }
+            });
+        }
+
+        private void lookedUp(int port, boolean isFree) {
+            synchronized (this) {
+                lookingUp--;
+                if (isFree) {
+                    free.add(port);
+                }
+            }
+            next();
+        }
+
+        private void claim(final PortMapping pm) {
+            if (permanentLeasesOnly) {
+                pm.setLeaseDurationSeconds(new UnsignedIntegerFourBytes(0));
+            }
+
+            Logger.normal(this, "Adding Port Mapping on alternate port: " + pm);
+
+            client.addPortMapping(connectionService, pm).whenComplete((v, e) -> {
+                if (e == null) {
+                    Logger.normal(this, "Port mapping added: " + pm);
+                    synchronized (this) {
+                        finished = true;
+                    }
+                    try {
+                        job.listener.succeeded(pm);
+                    } finally {
+                        done();
+                    }
+                    return;
+                }
+
+                ActionFailedException failure = GatewayClient.failureOf(e);
+                if (failure.getErrorCode() == ONLY_PERMANENT_LEASES_SUPPORTED
+                        && pm.getLeaseDurationSeconds().getValue() != 0) {
+                    permanentLeasesOnly = true;
+                    claim(pm);
+                    return;
+                }
+
+                Logger.normal(this, "Alternate port unavailable: " + pm + ". Reason: " +
+                        failure.getMessage());
+                synchronized (this) {
+                    claiming = false;
+                    claimUnanswered |= !failure.isAnswered();
+                }
+                next();
+            });
+        }
+
+        private void exhausted() {
+            PortMapping pm = job.portMapping;
+            Logger.warning(this, "No free alternate port for: " + pm);
+            try {
+                job.listener.failed(pm, "Port is already mapped" +
+                        (holder == null ? "" : " to " + holder) + " and no alternate port is free",
+                        !claimUnanswered);
+            } finally {
+                done();
+            }
+        }
+    }
+
+    /**
+     * @return External ports to try instead of the one asked for, in order
+     */
+    private static List<Integer> alternatePorts(int requested) {
+        List<Integer> ports = new ArrayList<>();
+        if (ALTERNATE_PORTS.length > 0) {
+            for (int port : ALTERNATE_PORTS) {
+                if (port != requested && !ports.contains(port)) {
+                    ports.add(port);
+                }
+            }
+        } else {
+            for (int port = requested + 1; port <= Math.min(65535, requested +
+                    ALTERNATE_PORT_COUNT); port++) {
+                ports.add(port);
+            }
+        }
+        return ports;
+    }
+
+    /**
+     * @param list Comma separated ports and ranges, e.g. "9000,9100-9115"
+     */
+    private static int[] parsePorts(String list) {
+        List<Integer> ports = new ArrayList<>();
+        for (String item : list.split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+            try {
+                int dash = item.indexOf('-');
+                int first = Integer.parseInt(item.substring(0, dash < 0 ? item.length() : dash)
+                        .trim());
+                int last = dash < 0 ? first : Integer.parseInt(item.substring(dash + 1).trim());
+                for (int port = Math.max(1, first); port <= Math.min(65535, last); port++) {
+                    ports.add(port);
+                }
+            } catch (NumberFormatException e) {
+                Logger.warning(PortMappingPipeline.class, "Ignoring invalid alternate port: " +
+                        item);
+            }
+        }
+        int[] result = new int[ports.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ports.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * @return A copy of a mapping on another external port
+     */
+    private static PortMapping withExternalPort(PortMapping pm, int externalPort) {
+        return new PortMapping(pm.isEnabled(), pm.getLeaseDurationSeconds(), pm.getRemoteHost(),
+                new UnsignedIntegerTwoBytes(externalPort), pm.getInternalPort(),
+                pm.getInternalClient(), pm.getProtocol(), pm.getDescription());
+    }
+
+}
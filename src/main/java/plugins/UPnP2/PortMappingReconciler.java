@@ -0,0 +1,417 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UDN;
+import org.fourthline.cling.support.model.PortMapping;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import freenet.pluginmanager.ForwardPort;
+import freenet.pluginmanager.ForwardPortCallback;
+import freenet.pluginmanager.ForwardPortStatus;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+
+/**
+ * Converges the port mappings of each connection service to the desired set. Only the adds and
+ * deletes needed to get there are sent, so reconciling an unchanged set costs no SOAP calls.
+ * Confirmed mappings are renewed through a {@link LeaseScheduler} before their lease runs out.
+ * Mappings left behind by an earlier run, as listed in the {@link MappingJournal}, are deleted
+ * before the first adds on a gateway.
+ */
+class PortMappingReconciler {
+
+    /**
+     * What we know about the mappings on one connection service
+     */
+    private static class MappingState {
+        final PortMappingPipeline pipeline;
+        /**
+         * Mappings the gateway confirmed, by {@link #key(PortMapping)} of the desired mapping.
+         * On IGD:2 the confirmed one may have another external port.
+         */
+        final Map<String, PortMapping> confirmed = new HashMap<>();
+        /**
+         * Keys of mappings with an add or delete in progress
+         */
+        final Set<String> pending = new HashSet<>();
+        /**
+         * Last desired mappings and callback, used when a renewal fails and we converge again
+         */
+        Map<PortMapping, ForwardPort> desired = new HashMap<>();
+        ForwardPortCallback cb;
+        /**
+         * Whether the journal was checked for mappings left behind on this service
+         */
+        boolean journalChecked = false;
+        /**
+         * Left behind mappings still being deleted. Adds wait until they are done, so they
+         * don't fail on a table full of stale entries.
+         */
+        int orphanDeletes = 0;
+
+        MappingState(PortMappingPipeline pipeline) {
+            this.pipeline = pipeline;
+        }
+    }
+
+    private final GatewayClient client;
+    private final int maxInFlight;
+    private final Map<Service, List<PortMapping>> activePortMappings;
+    private final Object activePortMappingsLock;
+    private final LeaseScheduler leaseScheduler;
+    private final Metrics metrics;
+    private final MappingJournal journal;
+
+    private final ConcurrentHashMap<Service, MappingState> states = new ConcurrentHashMap<>();
+
+    /**
+     * @param activePortMappings     Kept in line with confirmed mappings, so they can be removed
+     *                               on shutdown
+     * @param activePortMappingsLock Guards {@code activePortMappings}
+     */
+    PortMappingReconciler(GatewayClient client, Ticker ticker, int maxInFlight,
+                          Map<Service, List<PortMapping>> activePortMappings,
+                          Object activePortMappingsLock, Metrics metrics,
+                          MappingJournal journal) {
+        this.client = client;
+        this.maxInFlight = maxInFlight;
+        this.activePortMappings = activePortMappings;
+        this.activePortMappingsLock = activePortMappingsLock;
+        this.metrics = metrics;
+        this.journal = journal;
+        this.leaseScheduler = new LeaseScheduler(ticker, new LeaseScheduler.Renewer() {
+            @Override
+            public void renew(Service connectionService, PortMapping portMapping) {
+                PortMappingReconciler.this.renew(connectionService, portMapping);
+            }
+        });
+    }
+
+    /**
+     * Add the desired mappings which aren't confirmed yet, and delete confirmed mappings which
+     * aren't desired any more. This never blocks, statuses are reported through the callback as
+     * soon as they are known.
+     *
+     * @param desired Desired mappings on this service and the ports they forward
+     */
+    void reconcile(final Service connectionService, Map<PortMapping, ForwardPort> desired,
+                   final ForwardPortCallback cb) {
+
+        final MappingState state = getState(connectionService);
+        final UDN gateway = Gateway.uplinkOf(connectionService);
+
+        Map<ForwardPort, ForwardPortStatus> alreadyMapped = new HashMap<>();
+        Map<PortMapping, ForwardPort> toAdd = new HashMap<>();
+        Map<String, PortMapping> toDelete = new HashMap<>();
+        List<PortMapping> orphans = new ArrayList<>();
+
+        synchronized (state) {
+            state.desired = new HashMap<>(desired);
+            state.cb = cb;
+
+            Set<String> desiredKeys = new HashSet<>();
+            for (PortMapping pm : desired.keySet()) {
+                desiredKeys.add(key(pm));
+            }
+
+            if (!state.journalChecked) {
+                state.journalChecked = true;
+                for (PortMapping pm : journal.get(gateway)) {
+                    String key = key(pm);
+                    if (!desiredKeys.contains(key) && !state.confirmed.containsKey(key)
+                            && state.pending.add(key)) {
+                        orphans.add(pm);
+                    }
+                }
+                state.orphanDeletes = orphans.size();
+            }
+
+            for (Map.Entry<PortMapping, ForwardPort> entry : desired.entrySet()) {
+                PortMapping pm = entry.getKey();
+                String key = key(pm);
+
+                PortMapping confirmed = state.confirmed.get(key);
+                if (confirmed != null) {
+                    alreadyMapped.put(entry.getValue(), new ForwardPortStatus(ForwardPortStatus
+                            .MAYBE_SUCCESS, "", confirmed.getExternalPort().getValue()
+                            .intValue()));
+                } else if (state.orphanDeletes == 0 && state.pending.add(key)) {
+                    toAdd.put(pm, entry.getValue());
+                }
+            }
+
+            for (Map.Entry<String, PortMapping> entry : state.confirmed.entrySet()) {
+                if (!desiredKeys.contains(entry.getKey()) && state.pending.add(entry.getKey())) {
+                    toDelete.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        if (toAdd.isEmpty() && toDelete.isEmpty() && orphans.isEmpty()) {
+            Logger.minor(this, "Port mappings up to date on: " + connectionService);
+        }
+
+        if (!orphans.isEmpty()) {
+            Logger.normal(this, "Deleting " + orphans.size() + " port mappings left behind on: " +
+                    connectionService);
+        }
+        if (!orphans.isEmpty()) {
+            state.pipeline.submitDeleteLeftovers(orphans, new PortMappingPipeline.Listener() {
+                @Override
+                public void succeeded(PortMapping portMapping) {
+                    journal.removed(gateway, portMapping);
+                    orphanDeleted(connectionService, state, portMapping);
+                }
+
+                @Override
+                public void failed(PortMapping portMapping, String reason,
+                                   boolean refused) {
+                    // Still in the journal, so the next start tries again
+                    orphanDeleted(connectionService, state, portMapping);
+                }
+            });
+        }
+
+        if (!alreadyMapped.isEmpty() && cb != null) {
+            cb.portForwardStatus(alreadyMapped);
+        }
+
+        // Deletes go first to make room on small mapping tables
+        for (Map.Entry<String, PortMapping> entry : toDelete.entrySet()) {
+            final String key = entry.getKey();
+
+            state.pipeline.submitDelete(entry.getValue(), new PortMappingPipeline.Listener() {
+                @Override
+                public void succeeded(PortMapping portMapping) {
+                    synchronized (state) {
+                        state.pending.remove(key);
+                        state.confirmed.remove(key);
+                    }
+                    updateActive(connectionService, state);
+                    leaseScheduler.cancel(connectionService, portMapping);
+                    journal.removed(gateway, portMapping);
+                }
+
+                @Override
+                public void failed(PortMapping portMapping, String reason,
+                                   boolean refused) {
+                    // Keep it as confirmed, the next reconcile will try again
+                    synchronized (state) {
+                        state.pending.remove(key);
+                    }
+                }
+            });
+        }
+
+        for (Map.Entry<PortMapping, ForwardPort> entry : toAdd.entrySet()) {
+            final PortMapping requested = entry.getKey();
+            final String key = key(requested);
+            final ForwardPort forwardPort = entry.getValue();
+
+            // Written down first, so it is cleaned up even if we die before it's confirmed
+            journal.added(gateway, requested);
+            state.pipeline.submit(requested, new PortMappingPipeline.Listener() {
+                @Override
+                public void succeeded(PortMapping portMapping) {
+                    synchronized (state) {
+                        state.pending.remove(key);
+                        state.confirmed.put(key, portMapping);
+                    }
+                    if (!key(portMapping).equals(key)) {
+                        // The gateway picked another port
+                        journal.added(gateway, portMapping);
+                        journal.removed(gateway, requested);
+                    }
+                    updateActive(connectionService, state);
+                    leaseScheduler.schedule(connectionService, portMapping);
+                    metrics.mappingAdded();
+
+                    // Notify Fred the port mapping is successful
+                    report(cb, forwardPort, new ForwardPortStatus(ForwardPortStatus
+                            .MAYBE_SUCCESS, "", portMapping.getExternalPort().getValue()
+                            .intValue()));
+                }
+
+                @Override
+                public void failed(PortMapping portMapping, String reason,
+                                   boolean refused) {
+                    synchronized (state) {
+                        state.pending.remove(key);
+                    }
+                    if (!refused) {
+                        // It may exist anyway, so leave it for the cleanup on the next start
+                        report(cb, forwardPort, new ForwardPortStatus(ForwardPortStatus
+                                .PROBABLE_FAILURE, reason, forwardPort.portNumber));
+                        return;
+                    }
+                    // Not ours, or not there. Either way it mustn't be deleted later.
+                    journal.removed(gateway, portMapping);
+
+                    // Notify Fred the port mapping is failed
+                    report(cb, forwardPort, new ForwardPortStatus(ForwardPortStatus
+                            .DEFINITE_FAILURE, reason, forwardPort.portNumber));
+                }
+            });
+        }
+    }
+
+    /**
+     * Count down the left behind mappings of a service. Once the last one is done, the adds
+     * which waited for them are made.
+     */
+    private void orphanDeleted(Service connectionService, MappingState state,
+                               PortMapping portMapping) {
+        Map<PortMapping, ForwardPort> desired;
+        ForwardPortCallback cb;
+        synchronized (state) {
+            state.pending.remove(key(portMapping));
+            if (--state.orphanDeletes > 0) {
+                return;
+            }
+            desired = state.desired;
+            cb = state.cb;
+        }
+        if (states.get(connectionService) == state) {
+            reconcile(connectionService, desired, cb);
+        }
+    }
+
+    /**
+     * Drop what we know about a connection service, e.g. because its gateway went away or
+     * came back and may have lost its mappings. The next reconcile starts from scratch.
+     */
+    void forget(Service connectionService) {
+        states.remove(connectionService);
+        leaseScheduler.cancelAll(connectionService);
+        synchronized (activePortMappingsLock) {
+            activePortMappings.remove(connectionService);
+        }
+    }
+
+    void shutdown() {
+        leaseScheduler.shutdown();
+    }
+
+    /**
+     * Add a confirmed mapping again before its lease runs out. If that fails the mapping is no
+     * longer considered confirmed and the last desired set is reconciled again.
+     */
+    private void renew(final Service connectionService, PortMapping pm) {
+        final MappingState state = states.get(connectionService);
+        if (state == null) {
+            return;
+        }
+        final String key;
+        synchronized (state) {
+            key = desiredKeyOf(state, pm);
+            if (key == null || !state.pending.add(key)) {
+                return;
+            }
+        }
+
+        state.pipeline.submitRenew(pm, new PortMappingPipeline.Listener() {
+            @Override
+            public void succeeded(PortMapping portMapping) {
+                synchronized (state) {
+                    state.pending.remove(key);
+                }
+                leaseScheduler.schedule(connectionService, portMapping);
+            }
+
+            @Override
+            public void failed(PortMapping portMapping, String reason,
+                               boolean refused) {
+                Map<PortMapping, ForwardPort> desired;
+                ForwardPortCallback cb;
+                synchronized (state) {
+                    state.pending.remove(key);
+                    state.confirmed.remove(key);
+                    desired = state.desired;
+                    cb = state.cb;
+                }
+                updateActive(connectionService, state);
+                reconcile(connectionService, desired, cb);
+            }
+        });
+    }
+
+    /**
+     * @return Key of the desired mapping a confirmed one was made for, or null if it isn't
+     * confirmed. Must hold the state's lock.
+     */
+    private static String desiredKeyOf(MappingState state, PortMapping confirmed) {
+        String key = key(confirmed);
+        for (Map.Entry<String, PortMapping> entry : state.confirmed.entrySet()) {
+            if (key(entry.getValue()).equals(key)) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    private MappingState getState(Service connectionService) {
+        MappingState state = states.get(connectionService);
+        if (state == null) {
+            state = new MappingState(new PortMappingPipeline(connectionService, client,
+                    maxInFlight));
+            MappingState existing = states.putIfAbsent(connectionService, state);
+            if (existing != null) {
+                state = existing;
+            }
+        }
+        return state;
+    }
+
+    private void updateActive(Service connectionService, MappingState state) {
+        List<PortMapping> active;
+        synchronized (state) {
+            active = new ArrayList<>(state.confirmed.values());
+        }
+        synchronized (activePortMappingsLock) {
+            activePortMappings.put(connectionService, active);
+        }
+    }
+
+    private static void report(ForwardPortCallback cb, ForwardPort forwardPort,
+                               ForwardPortStatus status) {
+        if (cb == null) {
+            return;
+        }
+        Map<ForwardPort, ForwardPortStatus> statuses = new HashMap<>();
+        statuses.put(forwardPort, status);
+        cb.portForwardStatus(statuses);
+    }
+
+    /**
+     * Identifies a mapping on a gateway
+     */
+    static String key(PortMapping pm) {
+        return pm.getProtocol() + ":" + pm.getExternalPort().getValue() + ":" +
+                pm.getInternalClient();
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package plugins.UPnP2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import freenet.support.Logger;
+
+/**
+ * State the plugin keeps in the node's directory. Saves are coalesced on an executor and go to a
+ * temporary file first, so a crash never leaves a half written file behind.
+ */
+abstract class PropertiesFile {
+
+    private final File file;
+    private final Executor executor;
+    private final String comments;
+    /**
+     * Whether a write is queued. Changes made before it runs are written along with it.
+     */
+    private final AtomicBoolean writeQueued = new AtomicBoolean();
+    private final Runnable writer = new Runnable() {
+        @Override
+        public void run() {
+            writeQueued.set(false);
+            write();
+        }
+    };
+
+    /**
+     * @param file     Where to keep the properties, or null to not keep them
+     * @param executor Writes the file
+     */
+    PropertiesFile(File file, Executor executor, String comments) {
+        this.file = file;
+        this.executor = executor;
+        this.comments = comments;
+    }
+
+    /**
+     * The properties to write
+     */
+    protected abstract Properties snapshot();
+
+    /**
+     * @return What was saved last time, empty if nothing was or it is unreadable
+     */
+    Properties read() {
+        Properties properties = new Properties();
+        if (file == null || !file.exists()) {
+            return properties;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            Logger.warning(this, "Unable to read " + file + ": " + e, e);
+            properties.clear();
+        }
+        return properties;
+    }
+
+    /**
+     * Write a {@link #snapshot()} soon. This never blocks.
+     */
+    void save() {
+        if (file != null && writeQueued.compareAndSet(false, true)) {
+            executor.execute(writer);
+        }
+    }
+
+    private synchronized void write() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            snapshot().store(out, comments);
+        } catch (IOException e) {
+            Logger.warning(this, "Unable to write " + tmp + ": " + e, e);
+            return;
+        }
+        // Windows won't rename over an existing file
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            Logger.warning(this, "Unable to rename " + tmp + " to " + file);
+        }
+    }
+
+}
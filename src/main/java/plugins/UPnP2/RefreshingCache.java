@@ -0,0 +1,218 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import freenet.support.Logger;
+
+/**
+ * Holds a single value for a time to live. A stale value is still returned right away while it
+ * is reloaded in the background. Concurrent callers share one in-flight load instead of each
+ * starting their own. A load which throws leaves the last good value in place, and no other
+ * load is waited for until {@link #FAILURE_TTL} passed.
+ *
+ * @param <V> Type of the cached value. {@code null} is a valid value.
+ */
+abstract class RefreshingCache<V> {
+
+    /**
+     * Milliseconds a failed load is remembered, so callers don't each block on another one
+     */
+    private static final long FAILURE_TTL = Long.getLong("plugins.UPnP2.failedLoadTTL",
+            TimeUnit.SECONDS.toMillis(30));
+
+    private final long ttl;
+    private final Executor executor;
+
+    private V value;
+    /**
+     * The last value loaded or put, which {@link #invalidate()} doesn't drop
+     */
+    private V lastGood;
+    private boolean loaded = false;
+    private long loadedAt;
+    private long failedAt;
+    private boolean failed = false;
+    /**
+     * Bumped by {@link #invalidate()} so that a load started before it won't store its result
+     */
+    private int generation = 0;
+    /**
+     * The load of the current generation, if any
+     */
+    private FutureTask<V> inFlight;
+
+    /**
+     * @param ttl      Milliseconds a loaded value is considered fresh
+     * @param executor Runs background refreshes
+     */
+    RefreshingCache(long ttl, Executor executor) {
+        this.ttl = ttl;
+        this.executor = executor;
+    }
+
+    /**
+     * Fetch a new value. This may block.
+     */
+    protected abstract V load();
+
+    /**
+     * Get the cached value. Only blocks when nothing has been loaded yet, in which case the
+     * caller waits for the shared in-flight load. Right after a failed load the last good value
+     * is returned instead.
+     */
+    public V get() {
+        FutureTask<V> task;
+        boolean owner = false;
+        synchronized (this) {
+            if (loaded) {
+                if (System.currentTimeMillis() - loadedAt >= ttl && !recentlyFailed()) {
+                    refresh();
+                }
+                return value;
+            }
+            if (inFlight == null && recentlyFailed()) {
+                return value;
+            }
+            if (inFlight == null) {
+                inFlight = newLoadTask();
+                owner = true;
+            }
+            task = inFlight;
+        }
+
+        // Run the first load on the caller's thread, there's nothing to hand out meanwhile
+        if (owner) {
+            task.run();
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Logger.error(this, "Failed to load value", e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Like {@link #get()}, but never blocks. When nothing has been loaded yet a background load
+     * is started and {@code null} returned.
+     */
+    public V getNow() {
+        synchronized (this) {
+            if ((loaded && System.currentTimeMillis() - loadedAt < ttl) || recentlyFailed()) {
+                return value;
+            }
+        }
+        refresh();
+        return peek();
+    }
+
+    /**
+     * @return The cached value, stale or not, without loading anything
+     */
+    public synchronized V peek() {
+        return value;
+    }
+
+    /**
+     * Start a background reload unless one is already running.
+     */
+    public void refresh() {
+        FutureTask<V> task;
+        synchronized (this) {
+            if (inFlight != null) {
+                return;
+            }
+            task = inFlight = newLoadTask();
+        }
+        executor.execute(task);
+    }
+
+    /**
+     * Store a value which is known to be current, e.g. pushed by an event.
+     */
+    public synchronized void put(V value) {
+        this.value = value;
+        lastGood = value;
+        loaded = true;
+        loadedAt = System.currentTimeMillis();
+        failed = false;
+    }
+
+    /**
+     * Drop the cached value. The next {@link #get()} will wait for a fresh load, not for one
+     * which was already running.
+     */
+    public synchronized void invalidate() {
+        value = null;
+        loaded = false;
+        failed = false;
+        generation++;
+        inFlight = null;
+    }
+
+    // Call while holding the lock on this
+    private boolean recentlyFailed() {
+        return failed && System.currentTimeMillis() - failedAt < FAILURE_TTL;
+    }
+
+    private FutureTask<V> newLoadTask() {
+        final int startGeneration = generation;
+        return new FutureTask<>(new Callable<V>() {
+            @Override
+            public V call() {
+                try {
+                    V newValue = load();
+                    synchronized (RefreshingCache.this) {
+                        if (generation == startGeneration) {
+                            put(newValue);
+                        }
+                    }
+                    return newValue;
+                } catch (RuntimeException e) {
+                    Logger.error(RefreshingCache.this, "Failed to load value", e);
+                    synchronized (RefreshingCache.this) {
+                        if (generation == startGeneration) {
+                            value = lastGood;
+                            failed = true;
+                            failedAt = System.currentTimeMillis();
+                        }
+                        return lastGood;
+                    }
+                } finally {
+                    synchronized (RefreshingCache.this) {
+                        // A load invalidated meanwhile mustn't clear its successor
+                        if (generation == startGeneration) {
+                            inFlight = null;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+}
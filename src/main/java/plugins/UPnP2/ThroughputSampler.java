@@ -0,0 +1,252 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package plugins.UPnP2;
+
+/**
+ * Measured throughput of one WAN link, from its gateway's byte counters sampled at a fixed
+ * interval. The samples sit in a fixed-size ring of primitive arrays, so recording one never
+ * allocates. The counters are ui4 and wrap around every 4 GiB, which is undone before the
+ * samples are stored. The node's own byte totals are sampled alongside, so its traffic can be
+ * told from the rest of the link's.
+ */
+class ThroughputSampler {
+
+    private static final long COUNTER_RANGE = 1L << 32;
+    /**
+     * How many times its nominal rate a link may seem to carry across a wraparound before the
+     * counter going back is taken for a restart of the gateway instead
+     */
+    private static final int MAX_WRAP_RATE_FACTOR = 2;
+    /**
+     * Intervals a rate has to be reached in to count as the peak, so one burst, or one sample
+     * which wasn't a restart after all, doesn't raise the capacity
+     */
+    private static final int PEAK_INTERVALS = 3;
+    /**
+     * The least headroom reported, as a fraction of the capacity, so a busy link doesn't make
+     * Fred stop sending altogether
+     */
+    private static final double MIN_HEADROOM = 0.1;
+
+    /**
+     * {@link System#nanoTime()} of each sample
+     */
+    private final long[] times;
+    /**
+     * Bytes sent and received up to each sample, with the wraparounds undone
+     */
+    private final long[] sent;
+    private final long[] received;
+    /**
+     * Bytes the node sent and received up to each sample
+     */
+    private final long[] ownSent;
+    private final long[] ownReceived;
+    /**
+     * Where the next sample goes
+     */
+    private int next = 0;
+    private int size = 0;
+    /**
+     * Counters as the gateway reported them last, or -1 before the first sample
+     */
+    private long lastSent = -1;
+    private long lastReceived = -1;
+    /**
+     * The node's totals at the last sample
+     */
+    private long lastOwnSent;
+    private long lastOwnReceived;
+
+    /**
+     * @param capacity Samples kept. The averages span one interval less.
+     */
+    ThroughputSampler(int capacity) {
+        times = new long[Math.max(2, capacity)];
+        sent = new long[times.length];
+        received = new long[times.length];
+        ownSent = new long[times.length];
+        ownReceived = new long[times.length];
+    }
+
+    /**
+     * @param nanos         {@link System#nanoTime()} when the counters were read
+     * @param totalSent     TotalBytesSent as the gateway reported it
+     * @param totalReceived TotalBytesReceived as the gateway reported it
+     * @param own           {sent, received} bytes the node counted in total
+     * @param nominal       {upstream, downstream} bits per second the gateway reported, or null
+     *                      if not known yet
+     */
+    synchronized void record(long nanos, long totalSent, long totalReceived, long[] own,
+                             int[] nominal) {
+        if (size == 0) {
+            store(nanos, 0, 0, 0, 0);
+        } else {
+            int newest = index(size - 1);
+            double seconds = (nanos - times[newest]) / 1e9;
+            if (seconds <= 0) {
+                return;
+            }
+            long deltaSent = delta(lastSent, totalSent);
+            long deltaReceived = delta(lastReceived, totalReceived);
+            if (!plausible(lastSent, totalSent, deltaSent, seconds, nominal, 0)
+                    || !plausible(lastReceived, totalReceived, deltaReceived, seconds, nominal,
+                    1)) {
+                // The gateway restarted and so did its counters
+                size = 0;
+                store(nanos, 0, 0, 0, 0);
+            } else {
+                store(nanos, sent[newest] + deltaSent, received[newest] + deltaReceived,
+                        ownSent[newest] + Math.max(0, own[0] - lastOwnSent),
+                        ownReceived[newest] + Math.max(0, own[1] - lastOwnReceived));
+            }
+        }
+        lastSent = totalSent;
+        lastReceived = totalReceived;
+        lastOwnSent = own[0];
+        lastOwnReceived = own[1];
+    }
+
+    /**
+     * @return {upstream, downstream} mean bits per second of the traffic which isn't the node's,
+     * over all samples kept, or null if there are fewer than two
+     */
+    synchronized long[] getOtherAverage() {
+        if (size < 2) {
+            return null;
+        }
+        int oldest = index(0);
+        int newest = index(size - 1);
+        double seconds = (times[newest] - times[oldest]) / 1e9;
+        // The node also counts traffic which never crosses the gateway, e.g. to LAN peers
+        return new long[]{
+                bitsPerSecond(Math.max(0, sent[newest] - sent[oldest] -
+                        (ownSent[newest] - ownSent[oldest])), seconds),
+                bitsPerSecond(Math.max(0, received[newest] - received[oldest] -
+                        (ownReceived[newest] - ownReceived[oldest])), seconds)
+        };
+    }
+
+    /**
+     * @return {upstream, downstream} highest bits per second reached between consecutive
+     * samples in at least {@link #PEAK_INTERVALS} intervals, or null if there are fewer
+     */
+    synchronized long[] getPeak() {
+        if (size <= PEAK_INTERVALS) {
+            return null;
+        }
+        // The highest rates so far, in descending order
+        long[][] highest = new long[2][PEAK_INTERVALS];
+        for (int i = 1; i < size; i++) {
+            int previous = index(i - 1);
+            int current = index(i);
+            double seconds = (times[current] - times[previous]) / 1e9;
+            insert(highest[0], bitsPerSecond(sent[current] - sent[previous], seconds));
+            insert(highest[1], bitsPerSecond(received[current] - received[previous], seconds));
+        }
+        return new long[]{highest[0][PEAK_INTERVALS - 1], highest[1][PEAK_INTERVALS - 1]};
+    }
+
+    /**
+     * What is left of a link's capacity for the node after the traffic of other hosts measured
+     * on it. The node's own traffic isn't taken off, or the more it sent the less it would be
+     * told it may. The capacity is the nominal rate, or the measured peak where that is higher.
+     *
+     * @param nominal {upstream, downstream} bits per second the gateway reported
+     * @return {upstream, downstream} bits per second, or the nominal rates if nothing was
+     * measured yet
+     */
+    int[] getHeadroom(int[] nominal) {
+        long[] average = getOtherAverage();
+        if (average == null) {
+            return nominal;
+        }
+        long[] peak = getPeak();
+        int[] headroom = new int[2];
+        for (int i = 0; i < 2; i++) {
+            long capacity = nominal[i] & 0xFFFFFFFFL;
+            if (peak != null) {
+                capacity = Math.max(capacity, peak[i]);
+            }
+            long left = Math.max(capacity - average[i], (long) (capacity * MIN_HEADROOM));
+            headroom[i] = (int) Math.min(Integer.MAX_VALUE, left);
+        }
+        return headroom;
+    }
+
+    private void store(long nanos, long totalSent, long totalReceived, long totalOwnSent,
+                       long totalOwnReceived) {
+        times[next] = nanos;
+        sent[next] = totalSent;
+        received[next] = totalReceived;
+        ownSent[next] = totalOwnSent;
+        ownReceived[next] = totalOwnReceived;
+        next = (next + 1) % times.length;
+        size = Math.min(size + 1, times.length);
+    }
+
+    /**
+     * @param i 0 for the oldest sample kept
+     */
+    private int index(int i) {
+        return (next - size + i + times.length) % times.length;
+    }
+
+    /**
+     * @return Bytes counted since the previous reading, assuming the counter wrapped around if
+     * it went back
+     */
+    private static long delta(long previous, long current) {
+        return current >= previous ? current - previous : current + COUNTER_RANGE - previous;
+    }
+
+    /**
+     * A counter going back is a wraparound only if the traffic that takes is within
+     * {@link #MAX_WRAP_RATE_FACTOR} times the nominal rate of the link. Without one it is taken
+     * for a restart.
+     *
+     * @param direction 0 for upstream, 1 for downstream
+     */
+    private static boolean plausible(long previous, long current, long delta, double seconds,
+                                     int[] nominal, int direction) {
+        if (current >= previous) {
+            return true;
+        }
+        long rate = nominal == null ? 0 : nominal[direction] & 0xFFFFFFFFL;
+        return bitsPerSecond(delta, seconds) <= rate * MAX_WRAP_RATE_FACTOR;
+    }
+
+    /**
+     * Put a rate into a descending list of the highest ones, dropping the lowest
+     */
+    private static void insert(long[] highest, long rate) {
+        for (int i = 0; i < highest.length; i++) {
+            if (rate > highest[i]) {
+                long displaced = highest[i];
+                highest[i] = rate;
+                rate = displaced;
+            }
+        }
+    }
+
+    private static long bitsPerSecond(long bytes, double seconds) {
+        return seconds <= 0 ? 0 : (long) (bytes * 8 / seconds);
+    }
+
+}
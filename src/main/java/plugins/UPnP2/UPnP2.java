@@ -19,54 +19,70 @@ package plugins.UPnP2;
 
 import org.fourthline.cling.UpnpService;
 import org.fourthline.cling.UpnpServiceImpl;
+import org.fourthline.cling.binding.xml.ServiceDescriptorBinder;
+import org.fourthline.cling.controlpoint.ControlPoint;
 import org.fourthline.cling.controlpoint.SubscriptionCallback;
 import org.fourthline.cling.model.UnsupportedDataException;
-import org.fourthline.cling.model.action.ActionInvocation;
 import org.fourthline.cling.model.gena.CancelReason;
 import org.fourthline.cling.model.gena.GENASubscription;
 import org.fourthline.cling.model.gena.RemoteGENASubscription;
+import org.fourthline.cling.model.message.header.UDADeviceTypeHeader;
+import org.fourthline.cling.model.message.header.UDAServiceTypeHeader;
 import org.fourthline.cling.model.message.UpnpResponse;
 import org.fourthline.cling.model.meta.Device;
 import org.fourthline.cling.model.meta.RemoteDevice;
 import org.fourthline.cling.model.meta.Service;
 import org.fourthline.cling.model.state.StateVariableValue;
+import org.fourthline.cling.model.types.ServiceType;
 import org.fourthline.cling.model.types.UDADeviceType;
 import org.fourthline.cling.model.types.UDAServiceType;
+import org.fourthline.cling.model.types.UDN;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+import org.fourthline.cling.protocol.RetrieveRemoteDescriptors;
 import org.fourthline.cling.registry.Registry;
 import org.fourthline.cling.support.igd.PortMappingListener;
-import org.fourthline.cling.support.igd.callback.PortMappingAdd;
 import org.fourthline.cling.support.model.PortMapping;
 
+import java.io.File;
+import java.net.Inet6Address;
 import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.net.NetworkInterface;
+import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 import freenet.pluginmanager.DetectedIP;
 import freenet.pluginmanager.ForwardPort;
 import freenet.pluginmanager.ForwardPortCallback;
-import freenet.pluginmanager.ForwardPortStatus;
 import freenet.pluginmanager.FredPlugin;
 import freenet.pluginmanager.FredPluginBandwidthIndicator;
+import freenet.pluginmanager.FredPluginHTTP;
 import freenet.pluginmanager.FredPluginIPDetector;
 import freenet.pluginmanager.FredPluginPortForward;
 import freenet.pluginmanager.FredPluginRealVersioned;
 import freenet.pluginmanager.FredPluginThreadless;
 import freenet.pluginmanager.FredPluginVersioned;
+import freenet.pluginmanager.PluginHTTPException;
 import freenet.pluginmanager.PluginRespirator;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Ticker;
+import freenet.support.api.HTTPRequest;
 import freenet.support.transport.ip.IPUtil;
-import plugins.UPnP2.actions.GetCommonLinkProperties;
-import plugins.UPnP2.actions.GetExternalIPSync;
-import plugins.UPnP2.actions.GetLinkLayerMaxBitRates;
-import plugins.UPnP2.actions.GetSpecificPortMappingEntry;
+import plugins.UPnP2.actions.GetTotalBytesReceived;
+import plugins.UPnP2.actions.GetTotalBytesSent;
 
 /**
  * Second generation of UPnP plugin for Fred which is based on Cling.
@@ -75,7 +91,7 @@ import plugins.UPnP2.actions.GetSpecificPortMappingEntry;
  */
 public class UPnP2 implements FredPlugin, FredPluginThreadless, FredPluginIPDetector,
         FredPluginPortForward, FredPluginVersioned, FredPluginRealVersioned,
-        FredPluginBandwidthIndicator {
+        FredPluginBandwidthIndicator, FredPluginHTTP {
 
     private static volatile boolean logMINOR;
 
@@ -88,32 +104,182 @@ public class UPnP2 implements FredPlugin, FredPluginThreadless, FredPluginIPDete
         });
     }
 
+    /**
+     * Overall deadline in milliseconds for one round of external IP lookups across all gateways
+     */
+    private static final long EXTERNAL_IP_DEADLINE = Long.getLong(
+            "plugins.UPnP2.externalIPDeadline", TimeUnit.SECONDS.toMillis(5));
+    /**
+     * Milliseconds the external IPs handed to Fred are considered fresh
+     */
+    private static final long EXTERNAL_IP_TTL = Long.getLong("plugins.UPnP2.externalIPCacheTTL",
+            TimeUnit.MINUTES.toMillis(5));
+    /**
+     * Milliseconds GENA events are coalesced for before they are handled. 0 handles each on
+     * Cling's event thread.
+     */
+    private static final long EVENT_DELAY = Long.getLong("plugins.UPnP2.eventDelay", 200);
+    /**
+     * Milliseconds a gateway registered from the cache is used before it is replaced by one
+     * described by the gateway
+     */
+    private static final long DESCRIBE_DELAY = TimeUnit.SECONDS.toMillis(30);
+    /**
+     * Milliseconds callers wait for the first gateway before carrying on without one
+     */
+    private static final long BOOT_TIMEOUT = Long.getLong("plugins.UPnP2.bootTimeout",
+            TimeUnit.SECONDS.toMillis(10));
+    /**
+     * Milliseconds a gateway's link rates are considered fresh. They hardly ever change.
+     */
+    private static final long RATES_TTL = Long.getLong("plugins.UPnP2.ratesCacheTTL",
+            TimeUnit.HOURS.toMillis(6));
+    /**
+     * Milliseconds between samples of the WAN byte counters. 0 turns sampling off, and Fred is
+     * told the nominal link rates instead of the measured headroom.
+     */
+    private static final long THROUGHPUT_INTERVAL = Long.getLong(
+            "plugins.UPnP2.throughputInterval", TimeUnit.SECONDS.toMillis(10));
+    /**
+     * Samples kept of each WAN link. Averages span one interval less, 5 minutes by default.
+     */
+    private static final int THROUGHPUT_SAMPLES = Integer.getInteger(
+            "plugins.UPnP2.throughputSamples", 31);
+    /**
+     * How many times better another uplink has to score than the preferred one to take over
+     */
+    private static final double PREFERENCE_MARGIN = 1.5;
+    /**
+     * Latency assumed of gateways nothing was measured of yet, in microseconds
+     */
+    private static final long UNKNOWN_LATENCY = TimeUnit.SECONDS.toMicros(1);
+    /**
+     * Lease duration in seconds requested for port mappings. They are renewed before it runs out.
+     */
+    private static final long MAPPING_LEASE = Long.getLong("plugins.UPnP2.mappingLease",
+            TimeUnit.HOURS.toSeconds(1));
+    /**
+     * Lease duration in seconds requested for IPv6 pinholes, at most a day by the spec. They are
+     * updated before it runs out.
+     */
+    private static final long PINHOLE_LEASE = Long.getLong("plugins.UPnP2.pinholeLease",
+            TimeUnit.HOURS.toSeconds(1));
+    /**
+     * Milliseconds between checks that the mappings still match the desired set. These cost no
+     * SOAP calls unless something has to change.
+     */
+    private static final long RECONCILE_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+    /**
+     * How many port mappings may be in progress on one gateway at a time
+     */
+    private static final int MAPPINGS_IN_FLIGHT = Integer.getInteger(
+            "plugins.UPnP2.mappingsInFlight", 2);
+    /**
+     * Never wait for gateways on Fred's threads. Fred's calls get whatever is known at the time,
+     * lookups continue in the background and Fred is asked to detect the address again once
+     * they found something new.
+     */
+    private static final boolean NON_BLOCKING = Boolean.getBoolean("plugins.UPnP2.nonBlocking");
+    /**
+     * Milliseconds between repeats of the gateway search. M-SEARCH goes over UDP, so the search
+     * or the answers may get lost.
+     */
+    private static final long[] SEARCH_RETRY_DELAYS = {
+            TimeUnit.SECONDS.toMillis(3),
+            TimeUnit.SECONDS.toMillis(10),
+            TimeUnit.SECONDS.toMillis(30)
+    };
+
     private PluginRespirator pr;
-    private UpnpService upnpService = new UpnpServiceImpl();
+    private UpnpService upnpService;
     /**
-     * Store detected External IPs for different services
+     * Known gateways with their services, subscription and detected external IP. Lookups which
+     * miss the deadline still fill in the IP when they finish.
      */
-    private Map<Device, DetectedIP> detectedIPs = new HashMap<>();
+    private final GatewayStore gateways = new GatewayStore();
     /**
-     * Services of type WANIPConnection or WANPPPConnection
+     * What {@link #getAddress()} returns. Reloaded in the background once stale, and updated
+     * right away when a GENA event reports a new IP.
      */
-    private Set<Service> connectionServices = new HashSet<>();
+    private RefreshingCache<DetectedIP[]> externalIPCache;
     /**
-     * Services of type WANCommonInterfaceConfig
+     * Turns GENA events into external IP and connection status changes
      */
-    private Set<Service> commonServices = new HashSet<>();
-    private Map<Service, SubscriptionCallback> subscriptionCallbacks = new HashMap<>();
+    private EventPipeline eventPipeline;
+    /**
+     * Polls the uplinks whose GENA events can't be relied on
+     */
+    private EventingMonitor eventingMonitor;
+    /**
+     * Sends the actions which aren't part of a port mapping or pinhole pipeline
+     */
+    private GatewayClient client;
+    /**
+     * Link rates snapshot of each physical WAN link, keyed by {@link Gateway#getLink()}
+     */
+    private ConcurrentHashMap<UDN, RefreshingCache<int[]>> rateCaches =
+            new ConcurrentHashMap<>();
+    /**
+     * Measured throughput of each physical WAN link, keyed by {@link Gateway#getLink()}
+     */
+    private final ConcurrentHashMap<UDN, ThroughputSampler> samplers = new ConcurrentHashMap<>();
     private IGDRegistryListener registryListener;
-    private boolean booted = false;
+    /**
+     * Released once a usable connection service is registered or the first external IP
+     * event arrives
+     */
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private volatile boolean booted = false;
     private Ticker ticker;
-    private Set<ForwardPort> ports;
-    private ForwardPortCallback cb;
+    private Executor executor;
+    private final Metrics metrics = new Metrics();
+    /**
+     * The gateways found last time, and the ones found since
+     */
+    private GatewayCache gatewayCache;
+    /**
+     * The port mappings we created, so ones left behind by a crash can be cleaned up
+     */
+    private MappingJournal mappingJournal;
+    /**
+     * External IPs of cached gateways which answered on startup, until they are registered.
+     * Keyed by uplink.
+     */
+    private final ConcurrentHashMap<UDN, DetectedIP> restoredIPs = new ConcurrentHashMap<>();
+    /**
+     * Root UDNs of the gateways registered from the cache, whose devices still have to be
+     * replaced by ones described by the gateways
+     */
+    private final Set<UDN> provisional =
+            Collections.newSetFromMap(new ConcurrentHashMap<UDN, Boolean>());
+    /**
+     * Uplink our traffic most likely takes, see {@link #getPreferredUplink()}
+     */
+    private volatile UDN preferredUplink;
+    private volatile Set<ForwardPort> ports;
+    private volatile ForwardPortCallback cb;
     private Runnable portMappingRunnable = new Runnable() {
         @Override
         public void run() {
             doPortMapping();
         }
     };
+    /**
+     * Number of gateway searches sent so far
+     */
+    private int searches = 0;
+    private Runnable searchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            search();
+        }
+    };
+    private Runnable throughputRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sampleThroughput();
+        }
+    };
 
 
     // ###################################
@@ -123,6 +289,12 @@ public class UPnP2 implements FredPlugin, FredPluginThreadless, FredPluginIPDete
     @Override
     public void terminate() {
         ticker.removeQueuedJob(portMappingRunnable);
+        ticker.removeQueuedJob(searchRunnable);
+        ticker.removeQueuedJob(throughputRunnable);
+        eventingMonitor.shutdown();
+        registryListener.reconciler.shutdown();
+        // Pinholes don't expire for a while, close them while the control point still works
+        registryListener.pinholeReconciler.shutdown();
 
         // Release all resources and advertise BYEBYE to other UPnP devices
         upnpService.shutdown();
@@ -136,18 +308,181 @@ public class UPnP2 implements FredPlugin, FredPluginThreadless, FredPluginIPDete
 
         this.pr = pr;
 
-        ticker = pr.getNode().getTicker();
-
         // This will create necessary network resources for UPnP right away
         Logger.normal(this, "Starting Cling...");
 
+        start(new UpnpServiceImpl(new IGDServiceConfiguration()), pr.getNode().getTicker(),
+                pr.getNode().executor, pr.getNode().getUserDir());
+
+        // Use last time's gateways while we look for them again
+        restoreGateways();
+
+        // Only gateways should respond
+        search();
+
+        // Measure what the WAN links actually carry
+        if (THROUGHPUT_INTERVAL > 0) {
+            ticker.queueTimedJob(throughputRunnable, "UPnP2 throughput sampler",
+                    THROUGHPUT_INTERVAL, false, true);
+        }
+
+    }
+
+    /**
+     * Wire the plugin up to a UPnP stack without searching for devices. Benchmarks use this to
+     * run the plugin against in-process gateways.
+     *
+     * @param dataDir Where to keep the gateways found and the mappings made, or null to not
+     *                keep them
+     */
+    void start(UpnpService upnpService, Ticker ticker, Executor executor, File dataDir) {
+        this.upnpService = upnpService;
+        this.ticker = ticker;
+        this.executor = executor;
+        gatewayCache = new GatewayCache(dataDir == null ? null :
+                new File(dataDir, GatewayCache.FILE_NAME), executor);
+        mappingJournal = new MappingJournal(dataDir == null ? null :
+                new File(dataDir, MappingJournal.FILE_NAME), executor);
+        metrics.started();
+
+        externalIPCache = new RefreshingCache<DetectedIP[]>(EXTERNAL_IP_TTL, executor) {
+            @Override
+            protected DetectedIP[] load() {
+                DetectedIP[] previous = peek();
+                getExternalIP();
+                DetectedIP[] ips = currentIPs();
+                // Fred waited for the first load unless non-blocking, later ones ran behind
+                // its back
+                if ((NON_BLOCKING || previous != null) && !Arrays.equals(previous, ips)) {
+                    addressChanged();
+                }
+                return ips;
+            }
+        };
+
+        eventPipeline = new EventPipeline(ticker, EVENT_DELAY, new EventHandler());
+        client = new GatewayClient(upnpService.getControlPoint(), ticker, metrics);
+        eventingMonitor = new EventingMonitor(client, ticker, new EventingMonitor.Handler() {
+            @Override
+            public boolean polled(UDN uplink, String externalIP, String status) {
+                return eventPipeline.submit(uplink, externalIP, status);
+            }
+
+            @Override
+            public void resubscribe(Service connectionService) {
+                UPnP2.this.resubscribe(connectionService);
+            }
+        });
+
         // Add listeners for upnpService
         registryListener = new IGDRegistryListener();
         upnpService.getRegistry().addListener(registryListener);
+    }
+
+    /**
+     * Search for internet gateway devices and their connection services, and schedule the next
+     * search until {@link #SEARCH_RETRY_DELAYS} are used up. Unlike ssdp:all this doesn't make
+     * every device on the LAN answer.
+     */
+    private synchronized void search() {
+        Logger.normal(this, "Searching for internet gateway devices");
+
+        ControlPoint controlPoint = upnpService.getControlPoint();
+        controlPoint.search(new UDADeviceTypeHeader(new UDADeviceType("InternetGatewayDevice",
+                1)));
+        controlPoint.search(new UDADeviceTypeHeader(new UDADeviceType("InternetGatewayDevice",
+                2)));
+        for (UDAServiceType serviceType : IGDServiceConfiguration.CONNECTION_SERVICE_TYPES) {
+            controlPoint.search(new UDAServiceTypeHeader(serviceType));
+        }
+
+        if (searches < SEARCH_RETRY_DELAYS.length) {
+            ticker.queueTimedJob(searchRunnable, "UPnP2 gateway search",
+                    SEARCH_RETRY_DELAYS[searches], false, true);
+        }
+        searches++;
+    }
+
+    /**
+     * Check the gateways found last time, each with a single GetExternalIPAddress, and register
+     * the ones which answered so ports get mapped on them right away. Discovery runs meanwhile
+     * and finds the gateways which moved or didn't answer.
+     */
+    private void restoreGateways() {
+        ServiceDescriptorBinder binder = upnpService.getConfiguration()
+                .getServiceDescriptorBinderUDA10();
+
+        for (final GatewayCache.Record record : gatewayCache.load()) {
+            if (!record.isReachable()) {
+                Logger.normal(this, "Dropping cached gateway on a network we left: " +
+                        record.udn);
+                gatewayCache.remove(record.udn);
+                continue;
+            }
 
-        // Send a search message to all devices and services, they should respond soon
-        upnpService.getControlPoint().search();
+            final RemoteDevice device;
+            final Service connectionService;
+            try {
+                device = record.toDevice(binder);
+                connectionService = device.findService(ServiceType.valueOf(
+                        record.connectionServiceType));
+            } catch (Exception e) {
+                Logger.warning(this, "Unable to restore cached gateway " + record.udn + ": " +
+                        e, e);
+                gatewayCache.remove(record.udn);
+                continue;
+            }
 
+            final UDN udn = device.getIdentity().getUdn();
+            final UDN uplink = Gateway.uplinkOf(connectionService);
+            client.getExternalIPAddress(connectionService).whenComplete((externalIPAddress, e) -> {
+                if (e != null) {
+                    Logger.normal(this, "Cached gateway " + record.udn + " didn't answer, " +
+                            "waiting for discovery. Reason: " + e.getMessage());
+                    gatewayCache.remove(record.udn);
+                    return;
+                }
+                if (upnpService.getRegistry().getDevice(udn, true) != null) {
+                    // Discovery was quicker
+                    return;
+                }
+                Logger.normal(this, "Cached gateway answered: " + device.getDisplayString());
+                DetectedIP detectedIP = toDetectedIP(externalIPAddress);
+                if (detectedIP != null) {
+                    restoredIPs.put(uplink, detectedIP);
+                }
+                provisional.add(udn);
+                upnpService.getRegistry().addDevice(device);
+                // Cling takes a rediscovered gateway for the one registered, and would never
+                // learn about its other uplinks and services
+                ticker.queueTimedJob(() -> describe(device), "UPnP2 describe " + udn,
+                        DESCRIBE_DELAY, false, false);
+            });
+        }
+    }
+
+    /**
+     * Replace a gateway registered from the cache by one built from its own descriptors.
+     * The cached device is removed first, as Cling doesn't register a device it already has,
+     * and the descriptors are retrieved once that was handled.
+     */
+    private void describe(RemoteDevice device) {
+        UDN udn = device.getIdentity().getUdn();
+        if (upnpService.getRegistry().getRemoteDevice(udn, true) != device) {
+            // Gone or replaced meanwhile
+            provisional.remove(udn);
+            return;
+        }
+        Logger.normal(this, "Retrieving the descriptors of cached gateway " + udn);
+        upnpService.getRegistry().removeDevice(device);
+    }
+
+    GatewayStore getGateways() {
+        return gateways;
+    }
+
+    Metrics getMetrics() {
+        return metrics;
     }
 
     // ###################################
@@ -160,24 +495,21 @@ public class UPnP2 implements FredPlugin, FredPluginThreadless, FredPluginIPDete
 
         waitForBooting();
 
-        if (connectionServices.size() == 0) {
+        if (gateways.isEmpty()) {
             return null;
         }
 
-        if (detectedIPs.size() > 0) {
-            // IP is found from Service event callback
-            return detectedIPs.values().toArray(new DetectedIP[detectedIPs.size()]);
-        } else {
-            // Maybe the event is not fired for some reason. We need to request the IP manually.
-            getExternalIP();
-
-            if (detectedIPs.size() > 0) {
-                return detectedIPs.values().toArray(new DetectedIP[detectedIPs.size()]);
-            } else {
-                return null;
-            }
+        if (NON_BLOCKING) {
+            // The first lookup is only started here. Fred hears about its result through
+            // addressChanged().
+            DetectedIP[] ips = externalIPCache.getNow();
+            return ips != null ? ips : currentIPs();
         }
 
+        // Only blocks on the very first call. After that the cached IPs are returned at once
+        // and refreshed in the background when stale.
+        return externalIPCache.get();
+
     }
 
     // ###################################
@@ -196,37 +528,33 @@ public class UPnP2 implements FredPlugin, FredPluginThreadless, FredPluginIPDete
         doPortMapping();
     }
 
+    /**
+     * Bring the port mappings on every connection service, and the pinholes on every IPv6
+     * firewall, in line with {@link #ports}. Mappings which are already confirmed cost nothing,
+     * so calling this again is cheap.
+     */
     private void doPortMapping() {
-        if (connectionServices.size() > 0) {
+        if (!gateways.isEmpty()) {
 
-            Set<PortMapping> portMappings = new HashSet<>();
-            Map<PortMapping, ForwardPort> forwardPortMap = new HashMap<>();
-            for (Service connectionService : connectionServices) {
+            for (Gateway gateway : gateways.all()) {
+                Service connectionService = gateway.getConnectionService();
+                Map<PortMapping, ForwardPort> forwardPortMap = new HashMap<>();
                 for (ForwardPort port : ports) {
+                    if (port.isIP6) {
+                        continue;
+                    }
 
-                    PortMapping.Protocol protocol;
-                    String protocolName;
-                    switch (port.protocol) {
-                        case ForwardPort.PROTOCOL_UDP_IPV4:
-                            protocol = PortMapping.Protocol.UDP;
-                            protocolName = "UDP";
-                            break;
-                        case ForwardPort.PROTOCOL_TCP_IPV4:
-                            protocol = PortMapping.Protocol.TCP;
-                            protocolName = "TCP";
-                            break;
-                        default:
-                            protocol = PortMapping.Protocol.UDP;
-                            protocolName = "UDP";
+                    PortMapping.Protocol protocol = protocolOf(port);
+                    if (protocol == null) {
+                        continue;
                     }
 
-                    Logger.normal(this, String.format("Mapping port: %s %d (%s)%n", protocolName,
-                            port.portNumber, port.name));
+                    if (logMINOR)
+                        Logger.minor(this, String.format("Mapping port: %s %d (%s)%n",
+                                protocol, port.portNumber, port.name));
 
                     // Each service has its own local IP
-                    String localIP = ((RemoteDevice) connectionService.getDevice())
-                            .getIdentity()
-                            .getDiscoveredOnLocalAddress().getHostAddress();
+                    String localIP = localAddressOf(connectionService);
 
 
                     if (logMINOR)
@@ -240,33 +568,91 @@ public class UPnP2 implements FredPlugin, FredPluginThreadless, FredPluginIPDete
                             protocol,
                             "Freenet 0.7 " + port.name
                     );
+                    portMapping.setLeaseDurationSeconds(
+                            new UnsignedIntegerFourBytes(MAPPING_LEASE));
 
 
                     // Mapping for each local IP
-                    portMappings.add(portMapping);
-
                     forwardPortMap.put(portMapping, port);
                 }
 
-                // Add this port's mappings for this service
-                registryListener.addPortMappings(connectionService, portMappings,
-                        forwardPortMap,
-                        cb);
-                // Clear portMappings and get ready for next action
-                portMappings.clear();
-                forwardPortMap.clear();
+                // Only send the changes needed for this service to match the desired mappings
+                registryListener.reconciler.reconcile(connectionService, forwardPortMap, cb);
 
+                if (gateway.getFirewallService() != null) {
+                    doPinholes(gateway);
+                }
             }
         } else {
             Logger.warning(this, "Unable to get localIPs.");
         }
 
-        long now = System.currentTimeMillis();
-        ticker.queueTimedJob(portMappingRunnable, "portMappingRunnable" + now,
-                TimeUnit.MINUTES.toMillis(5), false, false);
+        // Leases are renewed on their own schedule. This only retries what failed, so there
+        // must never be more than one of it queued.
+        ticker.removeQueuedJob(portMappingRunnable);
+        ticker.queueTimedJob(portMappingRunnable, "portMappingRunnable", RECONCILE_INTERVAL,
+                false, true);
 
     }
 
+    /**
+     * Open a pinhole for every IPv6 forward Fred asked for, to our global IPv6 address on the
+     * interface the gateway was found on
+     */
+    private void doPinholes(Gateway gateway) {
+        String localIPv6 = localIPv6AddressOf(gateway.getConnectionService());
+        if (localIPv6 == null) {
+            if (logMINOR)
+                Logger.minor(this, "No global IPv6 address towards " + gateway);
+            return;
+        }
+
+        Map<PortMapping, ForwardPort> pinholeMap = new HashMap<>();
+        Set<String> keys = new HashSet<>();
+        for (ForwardPort port : ports) {
+            if (!port.isIP6) {
+                continue;
+            }
+
+            PortMapping.Protocol protocol = protocolOf(port);
+            if (protocol == null) {
+                continue;
+            }
+
+            PortMapping pinhole = new PortMapping(
+                    port.portNumber,
+                    localIPv6,
+                    protocol,
+                    "Freenet 0.7 " + port.name
+            );
+            pinhole.setLeaseDurationSeconds(new UnsignedIntegerFourBytes(PINHOLE_LEASE));
+
+            // Two forwards of the same port would be one pinhole
+            if (!keys.add(PortMappingReconciler.key(pinhole))) {
+                continue;
+            }
+            pinholeMap.put(pinhole, port);
+        }
+
+        registryListener.pinholeReconciler.reconcile(gateway.getFirewallService(), pinholeMap, cb);
+    }
+
+    /**
+     * @return The transport protocol of a forward, or null if it is none we can map
+     */
+    private PortMapping.Protocol protocolOf(ForwardPort port) {
+        switch (port.protocol) {
+            case ForwardPort.PROTOCOL_UDP_IPV4:
+                return PortMapping.Protocol.UDP;
+            case ForwardPort.PROTOCOL_TCP_IPV4:
+                return PortMapping.Protocol.TCP;
+            default:
+                Logger.warning(this, "Unsupported protocol " + port.protocol + " of port " +
+                        port.portNumber + " (" + port.name + ")");
+                return null;
+        }
+    }
+
     // ###################################
     // FredPluginRealVersioned method(s)
     // ###################################
@@ -291,11 +677,9 @@ public class UPnP2 implements FredPlugin, FredPluginThreadless, FredPluginIPDete
 
     @Override
     public int getUpstramMaxBitRate() {
-        System.out.println("Calling getUpstramMaxBitRate()");
-
         waitForBooting();
 
-        if (connectionServices.size() < 0 && commonServices.size() < 0) {
+        if (gateways.isEmpty()) {
             return -1;
         }
 
@@ -306,18 +690,18 @@ public class UPnP2 implements FredPlugin, FredPluginThreadless, FredPluginIPDete
             return -1;
         }
 
-        System.out.println("Upstream MaxBitRate: " + rates[0]);
+        if (logMINOR) {
+            Logger.minor(this, "Upstream MaxBitRate: " + rates[0]);
+        }
 
         return rates[0];
     }
 
     @Override
     public int getDownstreamMaxBitRate() {
-        System.out.println("Calling getDownstreamMaxBitRate()");
-
         waitForBooting();
 
-        if (connectionServices.size() < 0 && commonServices.size() < 0) {
+        if (gateways.isEmpty()) {
             return -1;
         }
 
@@ -327,50 +711,80 @@ public class UPnP2 implements FredPlugin, FredPluginThreadless, FredPluginIPDete
             return -1;
         }
 
-        System.out.println("Downstream MaxBitRate: " + rates[0]);
+        if (logMINOR) {
+            Logger.minor(this, "Downstream MaxBitRate: " + rates[1]);
+        }
 
         return rates[1];
     }
 
+    // ###################################
+    // FredPluginHTTP method(s)
+    // ###################################
+
+    /**
+     * Shows the action metrics, or dumps them as plain text with {@code ?format=text}
+     */
+    @Override
+    public String handleHTTPGet(HTTPRequest request) throws PluginHTTPException {
+        if ("text".equals(request.getParam("format"))) {
+            return metrics.dump();
+        }
+
+        return "<html><head><title>UPnP2</title></head><body>\n" +
+                "<h1>UPnP2 metrics</h1>\n" +
+                metrics.toHTML() +
+                "<h2>Eventing</h2>\n" +
+                eventingMonitor.toHTML() +
+                "<p><a href=\"?format=text\">Machine readable</a></p>\n" +
+                "</body></html>";
+    }
+
+    @Override
+    public String handleHTTPPost(HTTPRequest request) throws PluginHTTPException {
+        return handleHTTPGet(request);
+    }
+
     // ###################################
     // Implementations
     // ###################################
 
-    synchronized private void waitForBooting() {
-        // If no connection services available and it's the first call,
-        // we retry 10 times for the plugin to get enough IGDs
-        if (!booted) {
-            for (int count = 0; count < 10; count++) {
-                if (connectionServices.size() == 0) {
-                    // No devices found yet
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                } else {
-                    // Devices found. Wait for 5 more seconds for more devices
-                    try {
-                        Thread.sleep(5000);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                    break;
-                }
-                // Whatever any devices found, we won't sleep any more. If new devices later
-                // added, Cling will automatically subscribe the service's event and report IPs
+    /**
+     * Wait until the first usable gateway is registered or reports its external IP, for at most
+     * {@link #BOOT_TIMEOUT}. Only the first caller(s) can wait, later calls return at once.
+     * Nobody waits in {@link #NON_BLOCKING} mode.
+     */
+    private void waitForBooting() {
+        if (booted || NON_BLOCKING) {
+            return;
+        }
+
+        try {
+            if (!ready.await(BOOT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                Logger.normal(this, "No internet gateway device found within " + BOOT_TIMEOUT +
+                        " ms");
             }
-            booted = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
         }
 
+        // Whatever any devices found, we won't wait any more. If new devices later
+        // added, Cling will automatically subscribe the service's event and report IPs
+        booted = true;
     }
 
     /**
-     * Actively request external IP addresses. This method blocks.
+     * Actively request external IP addresses. The lookups are sent to all gateways at once and
+     * this method blocks until each of them answered or its timeout passed,
+     * {@link #EXTERNAL_IP_DEADLINE} at most. Gateways whose circuit breaker is open are skipped.
+     * Answers arriving after the deadline are still stored in {@link #gateways}.
      */
     private void getExternalIP() {
 
-        if (connectionServices.size() == 0) {
+        Collection<Gateway> all = gateways.all();
+
+        if (all.isEmpty()) {
             Logger.warning(this, "No internet gateway device detected. Unable to get external " +
                     "address.");
             return;
@@ -378,137 +792,393 @@ public class UPnP2 implements FredPlugin, FredPluginThreadless, FredPluginIPDete
 
         Logger.normal(this, "Try to get external IP");
 
-        for (Service connectionService : connectionServices) {
+        final Map<Service, UDN> uplinks = new HashMap<>();
+        for (Gateway gateway : all) {
+            uplinks.put(gateway.getConnectionService(), gateway.getUplink());
+        }
 
-            new GetExternalIPSync(connectionService, upnpService.getControlPoint()) {
+        CompletableFuture<Map<Service, String>> lookups = GatewayClient.fanOut(
+                uplinks.keySet(), service -> client.getExternalIPAddress(service)
+                        .whenComplete((externalIPAddress, e) -> {
+                            if (e != null) {
+                                Logger.warning(this, "Unable to get external IP. Reason: " +
+                                        e.getMessage());
+                                return;
+                            }
+                            Logger.normal(this, "Get external IP: " + externalIPAddress);
+                            DetectedIP detectedIP = toDetectedIP(externalIPAddress);
+                            if (detectedIP != null) {
+                                setDetectedIP(uplinks.get(service), detectedIP);
+                            }
+                        }));
 
-                @Override
-                protected void success(String externalIPAddress) {
-                    try {
-                        System.out.println("Get external IP: " + externalIPAddress);
-
-                        InetAddress inetAddress = InetAddress.getByName
-                                (externalIPAddress);
-                        if (IPUtil.isValidAddress(inetAddress, false)) {
-                            detectedIPs.put(getActionInvocation().getAction()
-                                            .getService().getDevice().getRoot(),
-                                    new DetectedIP(inetAddress,
-                                            DetectedIP.NOT_SUPPORTED));
-                        }
+        if (GatewayClient.await(lookups, EXTERNAL_IP_DEADLINE) == null) {
+            Logger.normal(this, "Not every gateway reported its external IP in time");
+        }
+    }
 
-                    } catch (UnknownHostException e) {
-                        e.printStackTrace();
-                    }
-                }
+    /**
+     * Ask Fred to call {@link #getAddress()} again because the external IPs changed since it
+     * last did, or because in {@link #NON_BLOCKING} mode it answered before the gateways did
+     */
+    private void addressChanged() {
+        if (pr == null) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                pr.getNode().ipDetector.redetectAddress();
+            }
+        });
+    }
 
-                @Override
-                public void failure(ActionInvocation invocation,
-                                    UpnpResponse operation,
-                                    String defaultMsg) {
-                    Logger.warning(this, "Unable to get external IP. Reason: " +
-                            defaultMsg);
+    /**
+     * @return Our address on the interface the service's gateway was discovered on
+     */
+    private static String localAddressOf(Service service) {
+        if (service.getDevice() instanceof RemoteDevice) {
+            return ((RemoteDevice) service.getDevice()).getIdentity()
+                    .getDiscoveredOnLocalAddress().getHostAddress();
+        }
+        // An in-process device
+        return InetAddress.getLoopbackAddress().getHostAddress();
+    }
+
+    /**
+     * @return Our global IPv6 address on the interface a gateway was found on, or null if there
+     * is none
+     */
+    private static String localIPv6AddressOf(Service service) {
+        if (!(service.getDevice() instanceof RemoteDevice)) {
+            return null;
+        }
+        InetAddress localAddress = ((RemoteDevice) service.getDevice()).getIdentity()
+                .getDiscoveredOnLocalAddress();
+        try {
+            NetworkInterface networkInterface = NetworkInterface.getByInetAddress(localAddress);
+            if (networkInterface == null) {
+                return null;
+            }
+            for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+                if (address instanceof Inet6Address && !address.isLinkLocalAddress()
+                        && !address.isSiteLocalAddress() && !address.isLoopbackAddress()
+                        && !address.isAnyLocalAddress()
+                        && (address.getAddress()[0] & 0xfe) != 0xfc) { // Not unique local
+                    // Without the %scope Java appends to interface addresses
+                    String hostAddress = address.getHostAddress();
+                    int scope = hostAddress.indexOf('%');
+                    return scope < 0 ? hostAddress : hostAddress.substring(0, scope);
                 }
-            }.run(); // Synchronous!
+            }
+        } catch (SocketException e) {
+            Logger.warning(UPnP2.class, "Unable to list the addresses of the interface of " +
+                    localAddress + ": " + e);
+        }
+        return null;
+    }
 
+    /**
+     * @param ip An address literal as reported by a gateway
+     * @return The address, or null if it isn't a valid public one
+     */
+    private static DetectedIP toDetectedIP(String ip) {
+        InetAddress inetAddress = EventPipeline.parseLiteral(ip);
+        if (inetAddress == null) {
+            Logger.warning(UPnP2.class, "Invalid external IP: " + ip);
+        } else if (IPUtil.isValidAddress(inetAddress, false)) {
+            return new DetectedIP(inetAddress, DetectedIP.NOT_SUPPORTED);
+        }
+        return null;
+    }
+
+    /**
+     * @return Snapshot of detected IPs, the one of the preferred uplink first, or null if there
+     * is none
+     */
+    private DetectedIP[] currentIPs() {
+        List<DetectedIP> ips = new ArrayList<>();
+        Gateway preferred = getPreferredUplink();
+        if (preferred != null && preferred.getDetectedIP() != null) {
+            ips.add(preferred.getDetectedIP());
+        }
+        for (Gateway gateway : gateways.all()) {
+            if (gateway.getDetectedIP() != null && !ips.contains(gateway.getDetectedIP())) {
+                ips.add(gateway.getDetectedIP());
+            }
         }
+        return ips.size() > 0 ? ips.toArray(new DetectedIP[ips.size()]) : null;
     }
 
+    /**
+     * Store an uplink's external IP
+     *
+     * @return Whether it differs from the one stored before
+     */
+    private boolean setDetectedIP(UDN uplink, final DetectedIP detectedIP) {
+        final boolean[] changed = new boolean[1];
+        gateways.update(uplink, new GatewayStore.Update() {
+            @Override
+            public Gateway apply(Gateway current) {
+                changed[0] = !detectedIP.equals(current.getDetectedIP());
+                return changed[0] ? current.withDetectedIP(detectedIP) : current;
+            }
+        });
+        return changed[0];
+    }
+
+    /**
+     * Get the rates of the preferred uplink's WAN link from its cached snapshot, less the
+     * traffic measured on it. Nothing is summed up: the uplinks on a link share its rate, and
+     * the other links don't carry our traffic. In {@link #NON_BLOCKING} mode null is returned
+     * while the rates are requested.
+     *
+     * @return {upstream, downstream} or null if the preferred uplink has no public IP or didn't
+     * report its rates
+     */
     private int[] getRates() {
+        Gateway preferred = getPreferredUplink();
 
-        final List<Integer> upRates = new ArrayList<>();
-        final List<Integer> downRates = new ArrayList<>();
-
-        for (final Service service : connectionServices) {
-            if (logMINOR) Logger.minor(this, "Service Type: " + service.getServiceType().getType());
-            if (service.getServiceType().getType().equals("WANPPPConnection")
-                    // Make sure the device isn't double natted
-                    // Double natted devices won't have a valid external IP
-                    && detectedIPs.containsKey(service.getDevice().getRoot())
-                    ) {
-
-                new GetLinkLayerMaxBitRates(service, upnpService.getControlPoint()) {
-                    @Override
-                    protected void success(int newUpstreamMaxBitRate, int newDownstreamMaxBitRate) {
-                        if (logMINOR)
-                            Logger.minor(this, "newUpstreamMaxBitRate: " + newUpstreamMaxBitRate);
-                        if (logMINOR)
-                            Logger.minor(this, "newDownstreamMaxBitRate: " +
-                                    newDownstreamMaxBitRate);
-
-                        upRates.add(newUpstreamMaxBitRate);
-                        downRates.add(newDownstreamMaxBitRate);
-                    }
+        // Make sure the device isn't double natted
+        // Double natted devices won't have a valid external IP
+        if (preferred == null || preferred.getDetectedIP() == null) {
+            return null;
+        }
 
-                    @Override
-                    public void failure(ActionInvocation invocation, UpnpResponse operation,
-                                        String defaultMsg) {
-                        Logger.warning(this, "Unable to get MaxBitRates. Reason: " +
-                                defaultMsg);
-                    }
-                }.run(); // Synchronous!
+        RefreshingCache<int[]> cache = getRateCache(preferred.getLink());
+        int[] rates = NON_BLOCKING ? cache.getNow() : cache.get();
 
+        // Leave room for the traffic other hosts put on the link
+        ThroughputSampler sampler = samplers.get(preferred.getLink());
+        return rates == null || sampler == null ? rates : sampler.getHeadroom(rates);
+    }
+
+    /**
+     * Choose the uplink our traffic most likely takes. Of the uplinks with a public external
+     * IP, or of all if none has one, it is the one with the best ratio of upstream rate to the
+     * action latency of its gateway. Another uplink has to score {@link #PREFERENCE_MARGIN}
+     * times better to take over, so close ones don't flap. Rates which aren't known yet count as
+     * the lowest. Ranking never sends anything to the gateways.
+     *
+     * @return The preferred uplink, or null if there is none
+     */
+    private Gateway getPreferredUplink() {
+        List<Gateway> candidates = new ArrayList<>();
+        for (Gateway gateway : gateways.all()) {
+            if (gateway.getDetectedIP() != null) {
+                candidates.add(gateway);
             }
         }
+        if (candidates.isEmpty()) {
+            candidates.addAll(gateways.all());
+        }
 
-        if (upRates.size() > 0) {
-            int upRatesSum = 0;
-            for (int rate : upRates) {
-                upRatesSum += rate;
+        Gateway best = null;
+        double bestScore = -1;
+        Gateway current = null;
+        double currentScore = -1;
+        for (Gateway gateway : candidates) {
+            double score = score(gateway);
+            if (score > bestScore) {
+                best = gateway;
+                bestScore = score;
             }
-            int downRatesSum = 0;
-            for (int rate : downRates) {
-                downRatesSum += rate;
+            if (gateway.getUplink().equals(preferredUplink)) {
+                current = gateway;
+                currentScore = score;
             }
-            return new int[]{upRatesSum, downRatesSum};
         }
 
-        // We get nothing from GetLinkLayerMaxBitRates. Try GetCommonLinkProperties
+        if (current != null && currentScore * PREFERENCE_MARGIN >= bestScore) {
+            return current;
+        }
+        if (best != null) {
+            Logger.normal(this, "Preferred uplink: " + best);
+            preferredUplink = best.getUplink();
+        }
+        return best;
+    }
 
-        final List<Integer> upRates2 = new ArrayList<>();
-        final List<Integer> downRates2 = new ArrayList<>();
-
-        for (final Service service : commonServices) {
-            if (logMINOR) Logger.minor(this, "Service Type: " + service.getServiceType().getType());
-
-            // Make sure the device isn't double natted
-            // Double natted devices won't have a valid external IP
-            if (detectedIPs.containsKey(service.getDevice().getRoot())) {
-                new GetCommonLinkProperties(service, upnpService.getControlPoint()) {
-                    @Override
-                    protected void success(int newUpstreamMaxBitRate, int newDownstreamMaxBitRate) {
-                        if (logMINOR)
-                            Logger.minor(this, "newUpstreamMaxBitRate: " + newUpstreamMaxBitRate);
-                        if (logMINOR)
-                            Logger.minor(this, "newDownstreamMaxBitRate: " +
-                                    newDownstreamMaxBitRate);
-
-                        upRates2.add(newUpstreamMaxBitRate);
-                        downRates2.add(newDownstreamMaxBitRate);
-                    }
+    /**
+     * Upstream bits per second per microsecond of recent action latency
+     */
+    private double score(Gateway gateway) {
+        int[] rates = getRateCache(gateway.getLink()).peek();
+        double upstream = rates != null && rates[0] > 0 ? rates[0] : 1;
+        long latency = metrics.getHealth().getLatencyMicros(Metrics.gatewayOf(
+                gateway.getDevice()));
+        return upstream / (latency > 0 ? latency : UNKNOWN_LATENCY);
+    }
 
-                    @Override
-                    public void failure(ActionInvocation invocation, UpnpResponse operation,
-                                        String defaultMsg) {
-                        Logger.warning(this, "Unable to get GetCommonLinkProperties. Reason: " +
-                                defaultMsg);
+    private RefreshingCache<int[]> getRateCache(final UDN link) {
+        RefreshingCache<int[]> cache = rateCaches.get(link);
+        if (cache == null) {
+            cache = new RefreshingCache<int[]>(RATES_TTL, executor) {
+                @Override
+                protected int[] load() {
+                    // Any uplink on the link will do
+                    for (Gateway gateway : gateways.all()) {
+                        if (gateway.getLink().equals(link)) {
+                            return loadRates(gateway);
+                        }
                     }
-                }.run(); // Synchronous!
+                    return null;
+                }
+            };
+            RefreshingCache<int[]> existing = rateCaches.putIfAbsent(link, cache);
+            if (existing != null) {
+                cache = existing;
             }
         }
+        return cache;
+    }
 
-        if (upRates2.size() > 0) {
-            int upRatesSum = 0;
-            for (int rate : upRates2) {
-                upRatesSum += rate;
+    /**
+     * Sample the byte counters of every WAN link once, then queue the next round. The samples
+     * are recorded as the answers come in.
+     */
+    private void sampleThroughput() {
+        Set<UDN> links = new HashSet<>();
+        for (Gateway gateway : gateways.all()) {
+            if (links.add(gateway.getLink())) {
+                sampleThroughput(gateway.getLink(), gateway.getCommonService());
             }
-            int downRatesSum = 0;
-            for (int rate : downRates2) {
-                downRatesSum += rate;
+        }
+        // Links which went away
+        samplers.keySet().retainAll(links);
+
+        ticker.queueTimedJob(throughputRunnable, "UPnP2 throughput sampler",
+                THROUGHPUT_INTERVAL, false, true);
+    }
+
+    private void sampleThroughput(final UDN link, Service commonService) {
+        if (!GetTotalBytesSent.isSupported(commonService)
+                || !GetTotalBytesReceived.isSupported(commonService)) {
+            return;
+        }
+
+        client.getTotalBytesSent(commonService).thenCombine(
+                client.getTotalBytesReceived(commonService), (sent, received) -> {
+                    ThroughputSampler sampler = samplers.get(link);
+                    if (sampler == null) {
+                        sampler = new ThroughputSampler(THROUGHPUT_SAMPLES);
+                        ThroughputSampler existing = samplers.putIfAbsent(link, sampler);
+                        if (existing != null) {
+                            sampler = existing;
+                        }
+                    }
+                    sampler.record(System.nanoTime(), sent, received,
+                            pr.getNode().collector.getTotalIO(), getRateCache(link).getNow());
+                    return null;
+                }).exceptionally(e -> {
+                    if (logMINOR) Logger.minor(this, "Unable to get the byte counters of " +
+                            link + ". Reason: " + e.getMessage());
+                    return null;
+                });
+    }
+
+    /**
+     * Request the link rates of one uplink. Tries GetLinkLayerMaxBitRates first, then falls
+     * back to GetCommonLinkProperties. This method blocks for at most the gateway's timeout per
+     * action.
+     *
+     * @return {upstream, downstream} or null if the gateway didn't report any
+     */
+    private int[] loadRates(final Gateway gateway) {
+
+        Service service = gateway.getConnectionService();
+        if (logMINOR) Logger.minor(this, "Service Type: " + service.getServiceType().getType());
+        CompletableFuture<int[]> rates = service.getServiceType().getType()
+                .equals("WANPPPConnection") ? client.getLinkLayerMaxBitRates(service) :
+                GatewayClient.<int[]>failed("GetLinkLayerMaxBitRates is only on WANPPPConnection");
+
+        // We get nothing from GetLinkLayerMaxBitRates. Try GetCommonLinkProperties
+        int[] result = GatewayClient.await(GatewayClient.orElse(rates,
+                () -> client.getCommonLinkProperties(gateway.getCommonService())));
+
+        if (result == null) {
+            Logger.warning(this, "Unable to get the link rates of uplink " +
+                    gateway.getUplink());
+        } else if (logMINOR) {
+            Logger.minor(this, "newUpstreamMaxBitRate: " + result[0]);
+            Logger.minor(this, "newDownstreamMaxBitRate: " + result[1]);
+        }
+        return result;
+    }
+
+    /**
+     * Handle the state variables of a GENA event from a connection service
+     *
+     * @return Whether the event reported anything new
+     */
+    boolean handleEvent(Service service, Map<String, ? extends StateVariableValue> values) {
+        return eventPipeline.submit(Gateway.uplinkOf(service), values);
+    }
+
+    /**
+     * Replace the subscription to a connection service with a new one, e.g. because Cling
+     * couldn't renew it
+     */
+    private void resubscribe(Service connectionService) {
+        UDN uplink = Gateway.uplinkOf(connectionService);
+        Gateway gateway = gateways.get(uplink);
+        if (gateway == null) {
+            return;
+        }
+
+        SubscriptionCallback previous = gateway.getSubscriptionCallback();
+        if (previous != null && previous.getSubscription() instanceof RemoteGENASubscription) {
+            // Remove current subscription from registry
+            upnpService.getRegistry().removeRemoteSubscription(
+                    (RemoteGENASubscription) previous.getSubscription());
+        }
+
+        final SubscriptionCallback callback = new IDGSubscriptionCallback(connectionService);
+        gateways.update(uplink, new GatewayStore.Update() {
+            @Override
+            public Gateway apply(Gateway current) {
+                return current.withSubscriptionCallback(callback);
             }
-            return new int[]{upRatesSum, downRatesSum};
+        });
+        upnpService.getControlPoint().execute(callback);
+    }
+
+    /**
+     * Applies what the GENA events of the connection services changed
+     */
+    private class EventHandler implements EventPipeline.Handler {
+
+        @Override
+        public boolean externalIP(UDN uplink, InetAddress address) {
+            if (!IPUtil.isValidAddress(address, false)) {
+                return false;
+            }
+            // If the IP address is already got, the next call to getAddress() won't
+            // need to be blocked.
+            ready.countDown();
+            if (!setDetectedIP(uplink, new DetectedIP(address, DetectedIP.NOT_SUPPORTED))) {
+                return false;
+            }
+            Logger.normal(this, "New External IP found: " + address.getHostAddress() +
+                    " on uplink " + uplink);
+            return true;
         }
 
-        return null;
+        @Override
+        public void connectionStatus(UDN uplink, String previous, String status) {
+            Logger.normal(this, "Connection status of uplink " + uplink + ": " + status);
+            if (previous != null && !previous.equals(EventPipeline.CONNECTED)
+                    && status.equals(EventPipeline.CONNECTED)) {
+                // Reconnected, likely with a new IP. Ask for it in case no event tells us.
+                externalIPCache.refresh();
+            }
+        }
+
+        @Override
+        public void externalIPsChanged() {
+            externalIPCache.put(currentIPs());
+            addressChanged();
+        }
     }
 
     /**
@@ -516,6 +1186,18 @@ public class UPnP2 implements FredPlugin, FredPluginThreadless, FredPluginIPDete
      */
     private class IGDRegistryListener extends PortMappingListener {
 
+        /**
+         * Converges each connection service's port mappings to the desired set
+         */
+        private final PortMappingReconciler reconciler = new PortMappingReconciler(
+                client, ticker, MAPPINGS_IN_FLIGHT, activePortMappings,
+                this, metrics, mappingJournal);
+
+        /**
+         * Keeps the IPv6 pinholes open on each gateway's firewall service
+         */
+        private final PinholeReconciler pinholeReconciler = new PinholeReconciler(client, ticker);
+
         public IGDRegistryListener() {
             super(new PortMapping[0]);
         }
@@ -525,20 +1207,62 @@ public class UPnP2 implements FredPlugin, FredPluginThreadless, FredPluginIPDete
 
             Logger.normal(this, "Remote device available: " + device.getDisplayString());
 
-            Service commonService;
-            if ((commonService = discoverCommonService(device)) == null) return;
+            boolean restored = false;
+            boolean added = false;
+            for (Service connectionService : discoverConnectionServices(device)) {
+
+                Service commonService;
+                if ((commonService = discoverCommonService(connectionService)) == null) continue;
+
+                // Optional, only IGD:2 gateways have it
+                Service firewallService = discoverFirewallService(connectionService);
+
+                // Known if it came from the gateway cache rather than discovery
+                DetectedIP restoredIP = restoredIPs.remove(Gateway.uplinkOf(connectionService));
+                restored |= restoredIP != null;
+
+                // The gateway may have come back without its mappings
+                reconciler.forget(connectionService);
+                if (firewallService != null) {
+                    pinholeReconciler.forget(firewallService);
+                }
+
+                // Publish the uplink before subscribing, so the first event finds it
+                SubscriptionCallback callback = new IDGSubscriptionCallback(connectionService);
+                Gateway gateway = new Gateway(device, connectionService, commonService,
+                        firewallService, callback, restoredIP);
+                gateways.put(gateway);
+                gatewayCache.put(gateway);
+                added = true;
+
+                // Add service events listener, polling until it's known to work
+                eventingMonitor.add(connectionService);
+                upnpService.getControlPoint().execute(callback);
+
+                // A gateway which reconnected may have renegotiated its link. Ranking the
+                // uplinks only peeks, so the rates are loaded here and kept fresh by their users.
+                rateCaches.remove(gateway.getLink());
+                getRateCache(gateway.getLink()).refresh();
+            }
 
-            commonServices.add(commonService);
+            if (!added) return;
 
-            Service connectionService;
-            if ((connectionService = discoverConnectionService(device)) == null) return;
+            if (!restored) {
+                metrics.record(Metrics.SSDP_DISCOVERY, Metrics.gatewayOf(device),
+                        Metrics.Outcome.SUCCESS, metrics.getStartedAt());
+            }
+            metrics.gatewayFound();
+
+            // A new gateway may have a different external IP
+            externalIPCache.invalidate();
 
-            connectionServices.add(connectionService);
+            ready.countDown();
 
-            // Add service events listener
-            SubscriptionCallback callback = new IDGSubscriptionCallback(connectionService);
-            upnpService.getControlPoint().execute(callback);
-            subscriptionCallbacks.put(connectionService, callback);
+            // Map the ports on it now rather than on the next reconcile. Not on this thread,
+            // it belongs to the registry.
+            if (ports != null) {
+                executor.execute(portMappingRunnable);
+            }
 
         }
 
@@ -549,10 +1273,14 @@ public class UPnP2 implements FredPlugin, FredPluginThreadless, FredPluginIPDete
 
             super.deviceRemoved(registry, device);
 
-            for (Service service : device.findServices()) {
-                // End the subscription
-                SubscriptionCallback callback = subscriptionCallbacks.get(service);
+            // A cached gateway being replaced by its described self keeps its external IPs
+            boolean replacing = provisional.remove(Gateway.udnOf(device));
+
+            // Only this gateway's uplinks go, the others are untouched
+            for (Gateway gateway : gateways.remove(Gateway.udnOf(device))) {
 
+                // End the subscription
+                SubscriptionCallback callback = gateway.getSubscriptionCallback();
                 if (callback != null) {
                     callback.end();
 
@@ -561,106 +1289,97 @@ public class UPnP2 implements FredPlugin, FredPluginThreadless, FredPluginIPDete
                         upnpService.getRegistry().removeRemoteSubscription(
                                 (RemoteGENASubscription) callback.getSubscription());
                     }
-
-                    // Remove subscription callback
-                    subscriptionCallbacks.remove(service);
                 }
-                // Remove Services
-                connectionServices.remove(service);
-            }
 
-            // Clear detected IPs
-            detectedIPs.clear();
-
-        }
-
-        synchronized public void addPortMappings(final Service connectionService, Set<PortMapping>
-                newPortMappings, final Map<PortMapping, ForwardPort> forwardPortMap, final
-                                                 ForwardPortCallback cb) {
-
-            if (connectionService == null || newPortMappings.size() == 0) return;
-
-            Logger.normal(this, "Activating port mappings on: " + connectionService);
-
-            final List<PortMapping> activeForService = new ArrayList<>();
-            for (final PortMapping pm : newPortMappings) {
-
-                Logger.normal(this, "Checking if the Port is already Mapped: " + pm);
+                reconciler.forget(gateway.getConnectionService());
+                eventPipeline.forget(gateway.getUplink());
+                eventingMonitor.forget(gateway.getUplink());
+                if (gateway.getFirewallService() != null) {
+                    pinholeReconciler.forget(gateway.getFirewallService());
+                }
 
-                new GetSpecificPortMappingEntry(connectionService, upnpService.getControlPoint(),
-                        pm) {
-                    @Override
-                    public void success(ActionInvocation invocation) {
-                        Logger.normal(this, "Port is already Mapped: " + pm);
+                if (replacing) {
+                    if (gateway.getDetectedIP() != null) {
+                        restoredIPs.put(gateway.getUplink(), gateway.getDetectedIP());
                     }
+                } else if (gateway.getDetectedIP() != null) {
+                    externalIPCache.invalidate();
+                }
+                rateCaches.remove(gateway.getLink());
+            }
 
-                    @Override
-                    public void failure(ActionInvocation invocation, UpnpResponse operation,
-                                        String defaultMsg) {
-                        Logger.normal(this, "Port is not Mapped: " + pm);
-                        Logger.normal(this, "Adding Port Mapping: " + pm);
-
-                        final ForwardPort forwardPort = forwardPortMap.get(pm);
-
-                        new PortMappingAdd(connectionService, upnpService.getControlPoint(), pm) {
-
-                            @Override
-                            public void success(ActionInvocation invocation) {
-                                Logger.normal(this, "Port mapping added: " + pm);
-                                activeForService.add(pm);
-
-                                // Notify Fred the port mapping is successful
-                                ForwardPortStatus status = new ForwardPortStatus(ForwardPortStatus
-                                        .MAYBE_SUCCESS, "", pm.getExternalPort().getValue()
-                                        .intValue());
-
-                                Map<ForwardPort, ForwardPortStatus> statuses = new HashMap<>();
-                                statuses.put(forwardPort, status);
+            if (replacing && device instanceof RemoteDevice) {
+                upnpService.getConfiguration().getAsyncProtocolExecutor().execute(
+                        new RetrieveRemoteDescriptors(upnpService,
+                                new RemoteDevice(((RemoteDevice) device).getIdentity())));
+            }
 
-                                cb.portForwardStatus(statuses);
-                            }
+        }
 
-                            @Override
-                            public void failure(ActionInvocation invocation, UpnpResponse operation,
-                                                String defaultMsg) {
-                                Logger.warning(this, "Failed to add port mapping: " + pm);
-                                Logger.warning(this, "Reason: " + defaultMsg);
+        /**
+         * IGD:1 or IGD:2
+         */
+        private boolean isGateway(Device device) {
+            return device.getType().implementsVersion(IGD_DEVICE_TYPE);
+        }
 
-                                // Notify Fred the port mapping is failed
-                                ForwardPortStatus status = new ForwardPortStatus(ForwardPortStatus
-                                        .DEFINITE_FAILURE, defaultMsg, forwardPort.portNumber);
+        /**
+         * Find the connection service of every WANConnectionDevice on every WANDevice, unlike
+         * Cling which only takes the first. IGD:2 gateways are taken too, their
+         * WANIPConnection:2 services are found through the version 1 type they implement.
+         *
+         * @return One connection service per uplink, IP preferred over PPP
+         */
+        private List<Service> discoverConnectionServices(Device device) {
+            List<Service> connectionServices = new ArrayList<>();
+            if (!isGateway(device)) {
+                return connectionServices;
+            }
 
-                                Map<ForwardPort, ForwardPortStatus> statuses = new HashMap<>();
-                                statuses.put(forwardPort, status);
+            Device[] connectionDevices = device.findDevices(CONNECTION_DEVICE_TYPE);
+            if (connectionDevices.length == 0) {
+                Logger.normal(this, "IGD doesn't support '" + CONNECTION_DEVICE_TYPE + "': " +
+                        device);
+                return connectionServices;
+            }
 
-                                cb.portForwardStatus(statuses);
-                            }
-                        }.run(); // Synchronous!
-                    }
-                }.run(); // Synchronous!
+            for (Device connectionDevice : connectionDevices) {
+                Service ipConnectionService = connectionDevice.findService(IP_SERVICE_TYPE);
+                Service pppConnectionService = connectionDevice.findService(PPP_SERVICE_TYPE);
 
-                activePortMappings.put(connectionService, activeForService);
+                if (ipConnectionService == null && pppConnectionService == null) {
+                    Logger.normal(this, "WAN connection device doesn't support IP or PPP WAN " +
+                            "connection service: " + connectionDevice);
+                    continue;
+                }
 
+                Logger.normal(this, "Using WAN connection device: " + connectionDevice);
+                connectionServices.add(ipConnectionService != null ? ipConnectionService :
+                        pppConnectionService);
             }
-
+            return connectionServices;
         }
 
-        protected Service discoverCommonService(Device device) {
-            if (!device.getType().equals(IGD_DEVICE_TYPE)) {
-                return null;
+        /**
+         * The link's common interface config sits on the WANDevice above the connection device
+         */
+        private Service discoverCommonService(Service connectionService) {
+            Device wanDevice = connectionService.getDevice().getParentDevice();
+            Service commonService = wanDevice == null ? null : wanDevice.findService(
+                    IGDServiceConfiguration.COMMON_INTERFACE_CONFIG_TYPE);
+            if (commonService == null) {
+                Logger.normal(this, "WAN device doesn't support WANCommonInterfaceConfig: " +
+                        wanDevice);
             }
+            return commonService;
+        }
 
-            UDADeviceType wanDeviceType = new UDADeviceType("WANDevice");
-            Device[] wanDevices = device.findDevices(wanDeviceType);
-            if (wanDevices.length == 0) {
-                Logger.normal(this, "IGD doesn't support '" + wanDeviceType + "': " + device);
-                return null;
-            }
-
-            Device wanDevice = wanDevices[0];
-            Logger.normal(this, "Using first discovered WAN device: " + wanDevice);
-
-            return wanDevice.findService(new UDAServiceType("WANCommonInterfaceConfig"));
+        /**
+         * The IPv6 firewall sits next to the connection service on the WAN connection device
+         */
+        private Service discoverFirewallService(Service connectionService) {
+            return connectionService.getDevice().findService(
+                    IGDServiceConfiguration.FIREWALL_CONTROL_TYPE);
         }
 
 
@@ -668,7 +1387,7 @@ public class UPnP2 implements FredPlugin, FredPluginThreadless, FredPluginIPDete
 
     private class IDGSubscriptionCallback extends SubscriptionCallback {
 
-        private int renewalFailedCount = 0;
+        private final long start = System.nanoTime();
 
         public IDGSubscriptionCallback(Service connectionService) {
             super(connectionService, 600);
@@ -677,6 +1396,8 @@ public class UPnP2 implements FredPlugin, FredPluginThreadless, FredPluginIPDete
         @Override
         public void established(GENASubscription sub) {
             Logger.normal(this, "GENA Established: " + sub.getSubscriptionId());
+            metrics.record(Metrics.GENA_SUBSCRIBE, service, Metrics.Outcome.SUCCESS, start);
+            eventingMonitor.established(Gateway.uplinkOf(service));
         }
 
         @Override
@@ -685,6 +1406,9 @@ public class UPnP2 implements FredPlugin, FredPluginThreadless, FredPluginIPDete
                               Exception exception,
                               String defaultMsg) {
             Logger.warning(this, "GENA Failed: " + defaultMsg);
+            metrics.record(Metrics.GENA_SUBSCRIBE, service, Metrics.isTimeout(service,
+                    responseStatus) ? Metrics.Outcome.TIMEOUT : Metrics.Outcome.FAILURE, start);
+            eventingMonitor.subscriptionFailed(Gateway.uplinkOf(service));
         }
 
         @Override
@@ -694,60 +1418,27 @@ public class UPnP2 implements FredPlugin, FredPluginThreadless, FredPluginIPDete
             Logger.normal(this, "GENA Ended: " + reason);
             if (logMINOR) Logger.minor(this, "GENA Response: " + response);
             if (reason == CancelReason.RENEWAL_FAILED) {
-                renewalFailedCount++;
-
-                if (renewalFailedCount == 5) {
-                    // Some routers doesn't response correct header and Cling won't be able
-                    // to renew it. Then we need to remove and re-subscribe.
-
-                    Logger.warning(this, "Renewal failed. Try to re-subscribe.");
-
-                    // Remove current subscription from registry
-                    upnpService.getRegistry().removeRemoteSubscription((RemoteGENASubscription)
-                            sub);
-
-                    SubscriptionCallback callback = new IDGSubscriptionCallback(service);
-                    upnpService.getControlPoint().execute(callback);
-                    subscriptionCallbacks.put(service, callback);
-                }
-
+                // Cling renews on its own and only tells us about failures. Some routers
+                // don't respond with a correct header and Cling won't be able to renew,
+                // after which the subscription is gone. The monitor subscribes again and
+                // polls meanwhile.
+                metrics.record(Metrics.GENA_RENEW, service, Metrics.Outcome.FAILURE, -1);
+                Logger.warning(this, "Renewal failed. Try to re-subscribe.");
+                eventingMonitor.renewalFailed(Gateway.uplinkOf(service));
             }
         }
 
         @Override
         public void eventReceived(GENASubscription sub) {
-
-            Map values = sub.getCurrentValues();
-
-            System.out.println(values);
-
-            StateVariableValue externalIPAddress =
-                    (StateVariableValue) values.get("ExternalIPAddress");
-
-            try {
-                InetAddress inetAddress = InetAddress.getByName
-                        (externalIPAddress.toString());
-                if (IPUtil.isValidAddress(inetAddress, false)) {
-                    DetectedIP detectedIP = new DetectedIP(inetAddress, DetectedIP.NOT_SUPPORTED);
-                    if (!detectedIPs.values().contains(detectedIP)) {
-                        Logger.normal(this, "New External IP found: " + externalIPAddress
-                                .toString());
-                        Logger.normal(this, "For device: " +
-                                sub.getService().getDevice().getRoot().getDisplayString());
-                        detectedIPs.put(sub.getService().getDevice().getRoot(), detectedIP);
-                    }
-                }
-                // If the IP address is already got, the next call to getAddress() won't
-                // need to be blocked.
-                booted = true;
-            } catch (UnknownHostException e) {
-                e.printStackTrace();
+            if (handleEvent(sub.getService(), sub.getCurrentValues())) {
+                eventingMonitor.eventReceived(Gateway.uplinkOf(service));
             }
         }
 
         @Override
         public void eventsMissed(GENASubscription sub, int numberOfMissedEvents) {
             Logger.warning(this, "Missed events: " + numberOfMissedEvents);
+            eventingMonitor.eventsMissed(Gateway.uplinkOf(service));
         }
 
         @Override
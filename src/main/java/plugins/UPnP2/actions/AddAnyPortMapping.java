@@ -0,0 +1,55 @@
+package plugins.UPnP2.actions;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UnsignedIntegerTwoBytes;
+import org.fourthline.cling.support.model.PortMapping;
+
+/**
+ * IGD:2 AddPortMapping which doesn't fail when the external port is taken. The gateway maps the
+ * next free port instead and tells which one.
+ */
+public abstract class AddAnyPortMapping extends ActionCallback {
+
+    final protected PortMapping portMapping;
+
+    public AddAnyPortMapping(Service service, PortMapping portMapping) {
+        this(service, null, portMapping);
+    }
+
+    @SuppressWarnings("unchecked")
+    public AddAnyPortMapping(Service service, ControlPoint controlPoint,
+                             PortMapping portMapping) {
+        super(new ActionInvocation(service.getAction("AddAnyPortMapping")), controlPoint);
+
+        this.portMapping = portMapping;
+
+        getActionInvocation().setInput("NewRemoteHost", portMapping.getRemoteHost());
+        getActionInvocation().setInput("NewExternalPort", portMapping.getExternalPort());
+        getActionInvocation().setInput("NewProtocol", portMapping.getProtocol());
+        getActionInvocation().setInput("NewInternalPort", portMapping.getInternalPort());
+        getActionInvocation().setInput("NewInternalClient", portMapping.getInternalClient());
+        getActionInvocation().setInput("NewEnabled", portMapping.isEnabled());
+        getActionInvocation().setInput("NewPortMappingDescription",
+                portMapping.getDescription());
+        getActionInvocation().setInput("NewLeaseDuration", portMapping.getLeaseDurationSeconds());
+    }
+
+    public static boolean isSupported(Service service) {
+        return service.getAction("AddAnyPortMapping") != null;
+    }
+
+    @Override
+    public void success(ActionInvocation invocation) {
+        success(((UnsignedIntegerTwoBytes) invocation.getOutput("NewReservedPort").getValue())
+                .getValue().intValue());
+    }
+
+    /**
+     * @param reservedPort The external port the gateway mapped
+     */
+    protected abstract void success(int reservedPort);
+
+}
@@ -0,0 +1,65 @@
+package plugins.UPnP2.actions;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UnsignedIntegerTwoBytes;
+import org.fourthline.cling.support.model.PortMapping;
+
+/**
+ * WANIPv6FirewallControl action opening an inbound IPv6 pinhole from any remote host and port
+ * to the internal client and port of {@code pinhole}, for its lease duration
+ */
+public abstract class AddPinhole extends ActionCallback {
+
+    /**
+     * UPnP error code when the firewall is off, so there is nothing to open
+     */
+    public static final int FIREWALL_DISABLED = 702;
+    /**
+     * UPnP error code when the gateway doesn't let us open pinholes
+     */
+    public static final int PINHOLE_NOT_ALLOWED = 703;
+
+    final protected PortMapping pinhole;
+
+    public AddPinhole(Service service, PortMapping pinhole) {
+        this(service, null, pinhole);
+    }
+
+    @SuppressWarnings("unchecked")
+    public AddPinhole(Service service, ControlPoint controlPoint, PortMapping pinhole) {
+        super(new ActionInvocation(service.getAction("AddPinhole")), controlPoint);
+
+        this.pinhole = pinhole;
+
+        // Empty host and port 0 are wildcards
+        getActionInvocation().setInput("RemoteHost", "");
+        getActionInvocation().setInput("RemotePort", new UnsignedIntegerTwoBytes(0));
+        getActionInvocation().setInput("InternalClient", pinhole.getInternalClient());
+        getActionInvocation().setInput("InternalPort", pinhole.getInternalPort());
+        getActionInvocation().setInput("Protocol", new UnsignedIntegerTwoBytes(
+                protocolNumber(pinhole.getProtocol())));
+        getActionInvocation().setInput("LeaseTime", pinhole.getLeaseDurationSeconds());
+    }
+
+    /**
+     * @return IANA protocol number, which is what WANIPv6FirewallControl takes
+     */
+    public static int protocolNumber(PortMapping.Protocol protocol) {
+        return protocol == PortMapping.Protocol.TCP ? 6 : 17;
+    }
+
+    @Override
+    public void success(ActionInvocation invocation) {
+        success(((UnsignedIntegerTwoBytes) invocation.getOutput("UniqueID").getValue())
+                .getValue().intValue());
+    }
+
+    /**
+     * @param uniqueId What the gateway calls the pinhole in UpdatePinhole and DeletePinhole
+     */
+    protected abstract void success(int uniqueId);
+
+}
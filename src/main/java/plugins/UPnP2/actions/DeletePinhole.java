@@ -0,0 +1,25 @@
+package plugins.UPnP2.actions;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UnsignedIntegerTwoBytes;
+
+/**
+ * WANIPv6FirewallControl action closing a pinhole
+ */
+public abstract class DeletePinhole extends ActionCallback {
+
+    public DeletePinhole(Service service, int uniqueId) {
+        this(service, null, uniqueId);
+    }
+
+    @SuppressWarnings("unchecked")
+    public DeletePinhole(Service service, ControlPoint controlPoint, int uniqueId) {
+        super(new ActionInvocation(service.getAction("DeletePinhole")), controlPoint);
+
+        getActionInvocation().setInput("UniqueID", new UnsignedIntegerTwoBytes(uniqueId));
+    }
+
+}
@@ -0,0 +1,41 @@
+package plugins.UPnP2.actions;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UnsignedIntegerTwoBytes;
+import org.fourthline.cling.support.model.PortMapping;
+
+/**
+ * IGD:2 action deleting all of our host's mappings of one protocol in a range of external ports
+ */
+public abstract class DeletePortMappingRange extends ActionCallback {
+
+    /**
+     * UPnP error code for no mappings in the range
+     */
+    public static final int PORT_MAPPING_NOT_FOUND = 730;
+
+    public DeletePortMappingRange(Service service, int startPort, int endPort,
+                                  PortMapping.Protocol protocol) {
+        this(service, null, startPort, endPort, protocol);
+    }
+
+    @SuppressWarnings("unchecked")
+    public DeletePortMappingRange(Service service, ControlPoint controlPoint, int startPort,
+                                  int endPort, PortMapping.Protocol protocol) {
+        super(new ActionInvocation(service.getAction("DeletePortMappingRange")), controlPoint);
+
+        getActionInvocation().setInput("NewStartPort", new UnsignedIntegerTwoBytes(startPort));
+        getActionInvocation().setInput("NewEndPort", new UnsignedIntegerTwoBytes(endPort));
+        getActionInvocation().setInput("NewProtocol", protocol.toString());
+        // Only the mappings of this host
+        getActionInvocation().setInput("NewManage", false);
+    }
+
+    public static boolean isSupported(Service service) {
+        return service.getAction("DeletePortMappingRange") != null;
+    }
+
+}
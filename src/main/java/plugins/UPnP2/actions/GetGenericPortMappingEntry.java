@@ -0,0 +1,49 @@
+package plugins.UPnP2.actions;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UnsignedIntegerTwoBytes;
+import org.fourthline.cling.support.model.PortMapping;
+
+/**
+ * Reads one entry of the port mapping table by its index, which IGD:1 gateways only offer to
+ * read the whole table
+ */
+public abstract class GetGenericPortMappingEntry extends ActionCallback {
+
+    /**
+     * UPnP error code past the last entry of the table
+     */
+    public static final int SPECIFIED_ARRAY_INDEX_INVALID = 713;
+    /**
+     * What some routers send past the last entry instead
+     */
+    public static final int NO_SUCH_ENTRY_IN_ARRAY = 714;
+
+    public GetGenericPortMappingEntry(Service service, int index) {
+        this(service, null, index);
+    }
+
+    @SuppressWarnings("unchecked")
+    public GetGenericPortMappingEntry(Service service, ControlPoint controlPoint, int index) {
+        super(new ActionInvocation(service.getAction("GetGenericPortMappingEntry")),
+                controlPoint);
+
+        getActionInvocation().setInput("NewPortMappingIndex", new UnsignedIntegerTwoBytes(index));
+    }
+
+    public static boolean isSupported(Service service) {
+        return service.getAction("GetGenericPortMappingEntry") != null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void success(ActionInvocation invocation) {
+        success(new PortMapping(invocation.getOutputMap()));
+    }
+
+    protected abstract void success(PortMapping entry);
+
+}
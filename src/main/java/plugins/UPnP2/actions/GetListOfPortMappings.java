@@ -0,0 +1,113 @@
+package plugins.UPnP2.actions;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+import org.fourthline.cling.model.types.UnsignedIntegerTwoBytes;
+import org.fourthline.cling.support.model.PortMapping;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/**
+ * IGD:2 action listing all mappings of one protocol, other hosts' too, in a single answer
+ */
+public abstract class GetListOfPortMappings extends ActionCallback {
+
+    /**
+     * UPnP error code for no mappings in the requested range
+     */
+    public static final int NO_SUCH_ENTRY_IN_ARRAY = 714;
+
+    public GetListOfPortMappings(Service service, PortMapping.Protocol protocol) {
+        this(service, null, protocol);
+    }
+
+    @SuppressWarnings("unchecked")
+    public GetListOfPortMappings(Service service, ControlPoint controlPoint,
+                                 PortMapping.Protocol protocol) {
+        super(new ActionInvocation(service.getAction("GetListOfPortMappings")), controlPoint);
+
+        getActionInvocation().setInput("NewStartPort", new UnsignedIntegerTwoBytes(0));
+        getActionInvocation().setInput("NewEndPort", new UnsignedIntegerTwoBytes(65535));
+        getActionInvocation().setInput("NewProtocol", protocol.toString());
+        // Other hosts' mappings too, as those are what our adds could run into
+        getActionInvocation().setInput("NewManage", true);
+        // All of them
+        getActionInvocation().setInput("NewNumberOfPorts", new UnsignedIntegerTwoBytes(0));
+    }
+
+    public static boolean isSupported(Service service) {
+        return service.getAction("GetListOfPortMappings") != null;
+    }
+
+    @Override
+    public void success(ActionInvocation invocation) {
+        List<PortMapping> entries;
+        try {
+            entries = parseListing((String) invocation.getOutput("NewPortListing").getValue());
+        } catch (Exception e) {
+            invalid("Invalid port listing: " + e);
+            return;
+        }
+        success(entries);
+    }
+
+    protected abstract void success(List<PortMapping> entries);
+
+    /**
+     * The gateway answered with a listing which can't be read
+     */
+    protected abstract void invalid(String reason);
+
+    /**
+     * @param listing PortMappingList document with one PortMappingEntry element per mapping
+     */
+    private static List<PortMapping> parseListing(String listing) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        Document document = factory.newDocumentBuilder().parse(new InputSource(
+                new StringReader(listing)));
+
+        List<PortMapping> entries = new ArrayList<>();
+        NodeList nodes = document.getElementsByTagNameNS("*", "PortMappingEntry");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Element entry = (Element) nodes.item(i);
+            entries.add(new PortMapping(
+                    !"0".equals(text(entry, "NewEnabled", "1")),
+                    new UnsignedIntegerFourBytes(text(entry, "NewLeaseTime", "0")),
+                    text(entry, "NewRemoteHost", ""),
+                    new UnsignedIntegerTwoBytes(text(entry, "NewExternalPort", null)),
+                    new UnsignedIntegerTwoBytes(text(entry, "NewInternalPort", "0")),
+                    text(entry, "NewInternalClient", ""),
+                    PortMapping.Protocol.valueOf(text(entry, "NewProtocol", null)),
+                    text(entry, "NewDescription", "")));
+        }
+        return entries;
+    }
+
+    /**
+     * @param defaultValue Returned if the element is missing, or null if it is required
+     */
+    private static String text(Element entry, String name, String defaultValue) {
+        NodeList nodes = entry.getElementsByTagNameNS("*", name);
+        if (nodes.getLength() == 0) {
+            if (defaultValue == null) {
+                throw new IllegalArgumentException("Missing " + name);
+            }
+            return defaultValue;
+        }
+        return nodes.item(0).getTextContent().trim();
+    }
+
+}
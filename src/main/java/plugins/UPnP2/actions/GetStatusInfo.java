@@ -0,0 +1,34 @@
+package plugins.UPnP2.actions;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.meta.Service;
+
+/**
+ * Connection status of a WANIPConnection or WANPPPConnection service, e.g. Connected or
+ * Disconnected
+ */
+public abstract class GetStatusInfo extends ActionCallback {
+
+    public GetStatusInfo(Service service) {
+        this(service, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    public GetStatusInfo(Service service, ControlPoint controlPoint) {
+        super(new ActionInvocation(service.getAction("GetStatusInfo")), controlPoint);
+    }
+
+    public static boolean isSupported(Service service) {
+        return service.getAction("GetStatusInfo") != null;
+    }
+
+    @Override
+    public void success(ActionInvocation invocation) {
+        success((String) invocation.getOutput("NewConnectionStatus").getValue());
+    }
+
+    protected abstract void success(String connectionStatus);
+
+}
@@ -0,0 +1,39 @@
+package plugins.UPnP2.actions;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UnsignedVariableInteger;
+
+/**
+ * Bytes received from the WAN since the gateway started counting. The counter is a ui4, so it
+ * wraps around every 4 GiB.
+ */
+public abstract class GetTotalBytesReceived extends ActionCallback {
+
+    public GetTotalBytesReceived(Service service) {
+        this(service, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    public GetTotalBytesReceived(Service service, ControlPoint controlPoint) {
+        super(new ActionInvocation(service.getAction("GetTotalBytesReceived")), controlPoint);
+    }
+
+    public static boolean isSupported(Service service) {
+        return service.getAction("GetTotalBytesReceived") != null;
+    }
+
+    @Override
+    public void success(ActionInvocation invocation) {
+        long totalBytesReceived = ((UnsignedVariableInteger) invocation.getOutput
+                ("NewTotalBytesReceived")
+                .getValue()).getValue();
+
+        success(totalBytesReceived);
+    }
+
+    protected abstract void success(long totalBytesReceived);
+
+}
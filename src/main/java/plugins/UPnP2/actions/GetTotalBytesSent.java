@@ -0,0 +1,39 @@
+package plugins.UPnP2.actions;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UnsignedVariableInteger;
+
+/**
+ * Bytes sent to the WAN since the gateway started counting. The counter is a ui4, so it
+ * wraps around every 4 GiB.
+ */
+public abstract class GetTotalBytesSent extends ActionCallback {
+
+    public GetTotalBytesSent(Service service) {
+        this(service, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    public GetTotalBytesSent(Service service, ControlPoint controlPoint) {
+        super(new ActionInvocation(service.getAction("GetTotalBytesSent")), controlPoint);
+    }
+
+    public static boolean isSupported(Service service) {
+        return service.getAction("GetTotalBytesSent") != null;
+    }
+
+    @Override
+    public void success(ActionInvocation invocation) {
+        long totalBytesSent = ((UnsignedVariableInteger) invocation.getOutput
+                ("NewTotalBytesSent")
+                .getValue()).getValue();
+
+        success(totalBytesSent);
+    }
+
+    protected abstract void success(long totalBytesSent);
+
+}
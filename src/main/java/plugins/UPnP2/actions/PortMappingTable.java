@@ -0,0 +1,53 @@
+package plugins.UPnP2.actions;
+
+import org.fourthline.cling.support.model.PortMapping;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Snapshot of a gateway's port mapping table, indexed by external port and protocol
+ */
+public final class PortMappingTable {
+
+    private final Map<String, PortMapping> index = new HashMap<>();
+
+    public PortMappingTable(Collection<PortMapping> entries) {
+        for (PortMapping entry : entries) {
+            if (entry.getExternalPort() != null && entry.getProtocol() != null) {
+                index.put(key(entry.getExternalPort().getValue().intValue(), entry.getProtocol()),
+                        entry);
+            }
+        }
+    }
+
+    /**
+     * @return The entry mapping this external port and protocol, or null if there is none
+     */
+    public PortMapping get(int externalPort, PortMapping.Protocol protocol) {
+        return index.get(key(externalPort, protocol));
+    }
+
+    /**
+     * @return The entry mapping the external port and protocol of {@code portMapping}, or null
+     */
+    public PortMapping get(PortMapping portMapping) {
+        return get(portMapping.getExternalPort().getValue().intValue(),
+                portMapping.getProtocol());
+    }
+
+    public Collection<PortMapping> getEntries() {
+        return Collections.unmodifiableCollection(index.values());
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    private static String key(int externalPort, PortMapping.Protocol protocol) {
+        return protocol + ":" + externalPort;
+    }
+
+}
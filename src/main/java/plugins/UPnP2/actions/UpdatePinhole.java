@@ -0,0 +1,28 @@
+package plugins.UPnP2.actions;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+import org.fourthline.cling.model.types.UnsignedIntegerTwoBytes;
+
+/**
+ * WANIPv6FirewallControl action restarting the lease of a pinhole
+ */
+public abstract class UpdatePinhole extends ActionCallback {
+
+    public UpdatePinhole(Service service, int uniqueId, UnsignedIntegerFourBytes leaseTime) {
+        this(service, null, uniqueId, leaseTime);
+    }
+
+    @SuppressWarnings("unchecked")
+    public UpdatePinhole(Service service, ControlPoint controlPoint, int uniqueId,
+                         UnsignedIntegerFourBytes leaseTime) {
+        super(new ActionInvocation(service.getAction("UpdatePinhole")), controlPoint);
+
+        getActionInvocation().setInput("UniqueID", new UnsignedIntegerTwoBytes(uniqueId));
+        getActionInvocation().setInput("NewLeaseTime", leaseTime);
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.UpnpService;
+import org.fourthline.cling.UpnpServiceImpl;
+import org.fourthline.cling.model.ValidationException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import freenet.pluginmanager.ForwardPort;
+import freenet.pluginmanager.ForwardPortCallback;
+import freenet.pluginmanager.ForwardPortStatus;
+import freenet.support.PooledExecutor;
+import freenet.support.PrioritizedTicker;
+import plugins.UPnP2.sim.LoopbackConfiguration;
+import plugins.UPnP2.sim.SimulatedGateway;
+import plugins.UPnP2.sim.SimulationSettings;
+
+/**
+ * A started plugin which knows a number of {@link SimulatedGateway}s. Cling only uses the
+ * loopback interface, so no real router on the LAN gets in the way.
+ */
+class PluginHarness {
+
+    private static PooledExecutor executor;
+    private static PrioritizedTicker ticker;
+
+    final UpnpService upnpService;
+    final UPnP2 plugin;
+    final List<SimulatedGateway> gateways = new ArrayList<>();
+
+    PluginHarness(int gatewayCount) throws ValidationException, InterruptedException {
+        this(gatewayCount, SimulatedGateway.ConnectionType.IP, new SimulationSettings());
+    }
+
+    PluginHarness(int gatewayCount, SimulatedGateway.ConnectionType connectionType,
+                  SimulationSettings settings) throws ValidationException, InterruptedException {
+        upnpService = new UpnpServiceImpl(new LoopbackConfiguration());
+        plugin = new UPnP2();
+        plugin.start(upnpService, ticker(), executor, null);
+
+        for (int i = 0; i < gatewayCount; i++) {
+            SimulatedGateway gateway = new SimulatedGateway("Simulated gateway " + i,
+                    connectionType, settings);
+            gateway.publish(upnpService);
+            gateways.add(gateway);
+        }
+        awaitGateways(gatewayCount);
+    }
+
+    /**
+     * Wait until the plugin knows the given number of gateways. Registry listeners are told
+     * about devices asynchronously.
+     */
+    void awaitGateways(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (plugin.getGateways().snapshot().size() != count) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Plugin knows " +
+                        plugin.getGateways().snapshot().size() + " gateways instead of " + count);
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    void stop() {
+        plugin.terminate();
+    }
+
+    private static synchronized PrioritizedTicker ticker() {
+        if (ticker == null) {
+            executor = new PooledExecutor();
+            ticker = new PrioritizedTicker(executor, 0);
+            executor.start();
+            ticker.start();
+        }
+        return ticker;
+    }
+
+    static Set<ForwardPort> forwardPorts(int count) {
+        Set<ForwardPort> ports = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            ports.add(new ForwardPort("bench" + i, false, ForwardPort.PROTOCOL_UDP_IPV4,
+                    40000 + i));
+        }
+        return ports;
+    }
+
+    /**
+     * Counts the statuses reported by the plugin
+     */
+    static class AwaitingCallback implements ForwardPortCallback {
+
+        private final CountDownLatch remaining;
+        final Map<ForwardPort, ForwardPortStatus> statuses = new HashMap<>();
+
+        AwaitingCallback(int expected) {
+            remaining = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void portForwardStatus(Map<ForwardPort, ForwardPortStatus> statuses) {
+            synchronized (this) {
+                this.statuses.putAll(statuses);
+            }
+            for (int i = 0; i < statuses.size(); i++) {
+                remaining.countDown();
+            }
+        }
+
+        void await() throws InterruptedException {
+            if (!remaining.await(30, TimeUnit.SECONDS)) {
+                throw new IllegalStateException(remaining.getCount() + " statuses missing");
+            }
+        }
+    }
+
+}
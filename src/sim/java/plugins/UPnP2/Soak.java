@@ -0,0 +1,146 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.support.model.PortMapping;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.pluginmanager.ForwardPort;
+import freenet.pluginmanager.ForwardPortCallback;
+import freenet.pluginmanager.ForwardPortStatus;
+import plugins.UPnP2.sim.SimulatedGateway;
+import plugins.UPnP2.sim.SimulationSettings;
+
+/**
+ * Runs the plugin against faulty simulated gateways for a while, churning the forwarded ports,
+ * the external IPs and the gateways themselves. Afterwards the faults are switched off and every
+ * gateway has to end up holding the desired mappings.
+ * <p>
+ * Usage: {@code Soak [gateways] [seconds] [errorRate] [latencyMillis]}
+ */
+public class Soak {
+
+    public static void main(String[] args) throws Exception {
+        int gatewayCount = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 60;
+        double errorRate = args.length > 2 ? Double.parseDouble(args[2]) : 0.05;
+        long latency = args.length > 3 ? Long.parseLong(args[3]) : 20;
+
+        SimulationSettings settings = new SimulationSettings()
+                .setErrorRate(errorRate)
+                .setLatency(latency);
+        PluginHarness harness = new PluginHarness(gatewayCount,
+                SimulatedGateway.ConnectionType.IP, settings);
+        UPnP2 plugin = harness.plugin;
+
+        final AtomicInteger successes = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        ForwardPortCallback counter = new ForwardPortCallback() {
+            @Override
+            public void portForwardStatus(Map<ForwardPort, ForwardPortStatus> statuses) {
+                for (ForwardPortStatus status : statuses.values()) {
+                    if (status.status > 0) {
+                        successes.incrementAndGet();
+                    } else {
+                        failures.incrementAndGet();
+                    }
+                }
+            }
+        };
+
+        Random random = new Random();
+        Set<ForwardPort> ports = PluginHarness.forwardPorts(1 + random.nextInt(16));
+        plugin.onChangePublicPorts(ports, counter);
+
+        int rounds = 0;
+        long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds);
+        while (System.currentTimeMillis() < end) {
+            rounds++;
+            SimulatedGateway gateway = harness.gateways.get(random.nextInt(gatewayCount));
+            switch (random.nextInt(4)) {
+                case 0:
+                    ports = PluginHarness.forwardPorts(1 + random.nextInt(16));
+                    plugin.onChangePublicPorts(ports, counter);
+                    break;
+                case 1:
+                    gateway.getConnection().setExternalIPAddressValue(
+                            "198.19." + random.nextInt(256) + "." + (1 + random.nextInt(254)));
+                    break;
+                case 2:
+                    gateway.unpublish(harness.upnpService);
+                    harness.awaitGateways(gatewayCount - 1);
+                    gateway.publish(harness.upnpService);
+                    harness.awaitGateways(gatewayCount);
+                    break;
+                default:
+                    plugin.getAddress();
+                    plugin.getUpstramMaxBitRate();
+                    plugin.getDownstreamMaxBitRate();
+                    break;
+            }
+            Thread.sleep(random.nextInt(500));
+        }
+
+        System.out.println("Soaked for " + rounds + " rounds: " + successes + " mappings " +
+                "succeeded, " + failures + " failed");
+
+        // Without faults the desired mappings have to show up everywhere. Mappings which were
+        // in flight when the faults were switched off may still fail, so reconcile until then.
+        settings.setErrorRate(0);
+        boolean converged = false;
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (!converged && System.currentTimeMillis() < deadline) {
+            plugin.onChangePublicPorts(ports, counter);
+            Thread.sleep(1000);
+            converged = true;
+            for (SimulatedGateway gateway : harness.gateways) {
+                converged &= missing(gateway, ports) == 0;
+            }
+        }
+
+        for (SimulatedGateway gateway : harness.gateways) {
+            System.out.println(gateway.getDevice().getDisplayString() + ": " +
+                    gateway.getConnection().getMappingCount() + " mappings, " +
+                    missing(gateway, ports) + " of " + ports.size() + " desired missing");
+        }
+
+        harness.stop();
+        System.exit(converged ? 0 : 1);
+    }
+
+    private static int missing(SimulatedGateway gateway, Set<ForwardPort> ports) {
+        Set<Integer> mapped = new HashSet<>();
+        for (PortMapping pm : gateway.getConnection().getMappings()) {
+            mapped.add(pm.getExternalPort().getValue().intValue());
+        }
+        int missing = 0;
+        for (ForwardPort port : ports) {
+            if (!mapped.contains(port.portNumber)) {
+                missing++;
+            }
+        }
+        return missing;
+    }
+
+}
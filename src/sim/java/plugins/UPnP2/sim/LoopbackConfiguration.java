@@ -0,0 +1,50 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.sim;
+
+import org.fourthline.cling.DefaultUpnpServiceConfiguration;
+import org.fourthline.cling.transport.impl.NetworkAddressFactoryImpl;
+import org.fourthline.cling.transport.spi.NetworkAddressFactory;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+
+/**
+ * Cling configuration which only uses the loopback interface, so {@link SimulatedGateway}s
+ * aren't announced on the real LAN and the plugin's searches don't find real routers
+ */
+public class LoopbackConfiguration extends DefaultUpnpServiceConfiguration {
+
+    @Override
+    protected NetworkAddressFactory createNetworkAddressFactory(int streamListenPort) {
+        return new NetworkAddressFactoryImpl(streamListenPort) {
+            @Override
+            protected boolean isUsableNetworkInterface(NetworkInterface iface) throws Exception {
+                return iface.isUp() && iface.isLoopback();
+            }
+
+            @Override
+            protected boolean isUsableAddress(NetworkInterface networkInterface,
+                                              InetAddress address) {
+                return address instanceof Inet4Address && address.isLoopbackAddress();
+            }
+        };
+    }
+
+}
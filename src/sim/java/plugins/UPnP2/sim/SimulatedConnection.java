@@ -0,0 +1,369 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.sim;
+
+import org.fourthline.cling.binding.annotations.UpnpAction;
+import org.fourthline.cling.binding.annotations.UpnpInputArgument;
+import org.fourthline.cling.binding.annotations.UpnpOutputArgument;
+import org.fourthline.cling.binding.annotations.UpnpStateVariable;
+import org.fourthline.cling.model.action.ActionException;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+import org.fourthline.cling.model.types.UnsignedIntegerTwoBytes;
+import org.fourthline.cling.support.model.PortMapping;
+
+import java.beans.PropertyChangeSupport;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The actions WANIPConnection:1 and WANPPPConnection:1 have in common, answered from memory.
+ * Subclasses carry the service annotations.
+ */
+public abstract class SimulatedConnection {
+
+    /**
+     * UPnP error code for a mapping which doesn't exist
+     */
+    private static final int NO_SUCH_ENTRY_IN_ARRAY = 714;
+    /**
+     * UPnP error code past the last mapping
+     */
+    private static final int SPECIFIED_ARRAY_INDEX_INVALID = 713;
+    /**
+     * UPnP error code for a full mapping table
+     */
+    private static final int NO_PORT_MAPS_AVAILABLE = 728;
+    /**
+     * UPnP error code for an external port mapped to another host
+     */
+    private static final int CONFLICT_IN_MAPPING_ENTRY = 718;
+
+    /**
+     * Sends delayed events of all simulated gateways
+     */
+    private static final ScheduledExecutorService eventSender =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Simulated gateway events");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final PropertyChangeSupport propertyChangeSupport = new PropertyChangeSupport(this);
+
+    private SimulationSettings settings = new SimulationSettings();
+
+    @UpnpStateVariable(name = "ExternalIPAddress", defaultValue = "203.0.113.1")
+    private volatile String externalIPAddress = "203.0.113.1";
+
+    @UpnpStateVariable(name = "ConnectionStatus", defaultValue = "Connected")
+    private volatile String connectionStatus = "Connected";
+
+    private final long connectedAt = System.currentTimeMillis();
+
+    private final ConcurrentHashMap<String, PortMapping> mappings = new ConcurrentHashMap<>();
+
+    void setSettings(SimulationSettings settings) {
+        this.settings = settings;
+    }
+
+    SimulationSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Cling subscribes to this to send GENA events
+     */
+    public PropertyChangeSupport getPropertyChangeSupport() {
+        return propertyChangeSupport;
+    }
+
+    public String getExternalIPAddressValue() {
+        return externalIPAddress;
+    }
+
+    /**
+     * Change the external IP, which subscribers are told about unless eventing is disabled
+     */
+    public void setExternalIPAddressValue(final String externalIPAddress) {
+        final String old = this.externalIPAddress;
+        this.externalIPAddress = externalIPAddress;
+
+        if (!settings.isEventing()) {
+            return;
+        }
+        Runnable send = new Runnable() {
+            @Override
+            public void run() {
+                propertyChangeSupport.firePropertyChange("ExternalIPAddress", old,
+                        externalIPAddress);
+            }
+        };
+        if (settings.getEventDelay() > 0) {
+            eventSender.schedule(send, settings.getEventDelay(), TimeUnit.MILLISECONDS);
+        } else {
+            send.run();
+        }
+    }
+
+    public int getMappingCount() {
+        return mappings.size();
+    }
+
+    public List<PortMapping> getMappings() {
+        return new ArrayList<>(mappings.values());
+    }
+
+    @UpnpAction(name = "GetExternalIPAddress", out = @UpnpOutputArgument(
+            name = "NewExternalIPAddress", stateVariable = "ExternalIPAddress"))
+    public String getExternalIPAddress() throws ActionException {
+        settings.beforeAction("GetExternalIPAddress");
+        return externalIPAddress;
+    }
+
+    @UpnpAction(name = "GetStatusInfo", out = {
+            @UpnpOutputArgument(name = "NewConnectionStatus", stateVariable = "ConnectionStatus",
+                    getterName = "getConnectionStatus"),
+            @UpnpOutputArgument(name = "NewLastConnectionError",
+                    stateVariable = "LastConnectionError", getterName = "getLastConnectionError"),
+            @UpnpOutputArgument(name = "NewUptime", stateVariable = "Uptime",
+                    getterName = "getUptime")
+    })
+    public StatusInfo getStatusInfo() throws ActionException {
+        settings.beforeAction("GetStatusInfo");
+        return new StatusInfo(connectionStatus, new UnsignedIntegerFourBytes(
+                (System.currentTimeMillis() - connectedAt) / 1000));
+    }
+
+    @UpnpAction(name = "GetSpecificPortMappingEntry", out = {
+            @UpnpOutputArgument(name = "NewInternalPort", stateVariable = "InternalPort",
+                    getterName = "getInternalPort"),
+            @UpnpOutputArgument(name = "NewInternalClient", stateVariable = "InternalClient",
+                    getterName = "getInternalClient"),
+            @UpnpOutputArgument(name = "NewEnabled", stateVariable = "PortMappingEnabled",
+                    getterName = "isEnabled"),
+            @UpnpOutputArgument(name = "NewPortMappingDescription",
+                    stateVariable = "PortMappingDescription", getterName = "getDescription"),
+            @UpnpOutputArgument(name = "NewLeaseDuration",
+                    stateVariable = "PortMappingLeaseDuration",
+                    getterName = "getLeaseDurationSeconds")
+    })
+    public PortMapping getSpecificPortMappingEntry(
+            @UpnpInputArgument(name = "NewRemoteHost", stateVariable = "RemoteHost")
+                    String remoteHost,
+            @UpnpInputArgument(name = "NewExternalPort", stateVariable = "ExternalPort")
+                    UnsignedIntegerTwoBytes externalPort,
+            @UpnpInputArgument(name = "NewProtocol", stateVariable = "PortMappingProtocol")
+                    String protocol) throws ActionException {
+        settings.beforeAction("GetSpecificPortMappingEntry");
+        PortMapping pm = mappings.get(key(externalPort, protocol));
+        if (pm == null) {
+            throw new ActionException(NO_SUCH_ENTRY_IN_ARRAY, "NoSuchEntryInArray");
+        }
+        return pm;
+    }
+
+    @UpnpAction(name = "GetGenericPortMappingEntry", out = {
+            @UpnpOutputArgument(name = "NewRemoteHost", stateVariable = "RemoteHost",
+                    getterName = "getRemoteHost"),
+            @UpnpOutputArgument(name = "NewExternalPort", stateVariable = "ExternalPort",
+                    getterName = "getExternalPort"),
+            @UpnpOutputArgument(name = "NewProtocol", stateVariable = "PortMappingProtocol",
+                    getterName = "getProtocol"),
+            @UpnpOutputArgument(name = "NewInternalPort", stateVariable = "InternalPort",
+                    getterName = "getInternalPort"),
+            @UpnpOutputArgument(name = "NewInternalClient", stateVariable = "InternalClient",
+                    getterName = "getInternalClient"),
+            @UpnpOutputArgument(name = "NewEnabled", stateVariable = "PortMappingEnabled",
+                    getterName = "isEnabled"),
+            @UpnpOutputArgument(name = "NewPortMappingDescription",
+                    stateVariable = "PortMappingDescription", getterName = "getDescription"),
+            @UpnpOutputArgument(name = "NewLeaseDuration",
+                    stateVariable = "PortMappingLeaseDuration",
+                    getterName = "getLeaseDurationSeconds")
+    })
+    public GenericEntry getGenericPortMappingEntry(
+            @UpnpInputArgument(name = "NewPortMappingIndex", stateVariable = "PortMappingIndex")
+                    UnsignedIntegerTwoBytes index) throws ActionException {
+        settings.beforeAction("GetGenericPortMappingEntry");
+        List<PortMapping> snapshot = getMappings();
+        int i = index.getValue().intValue();
+        if (i >= snapshot.size()) {
+            throw new ActionException(SPECIFIED_ARRAY_INDEX_INVALID,
+                    "SpecifiedArrayIndexInvalid");
+        }
+        return new GenericEntry(snapshot.get(i));
+    }
+
+    @UpnpAction(name = "AddPortMapping")
+    public void addPortMapping(
+            @UpnpInputArgument(name = "NewRemoteHost", stateVariable = "RemoteHost")
+                    String remoteHost,
+            @UpnpInputArgument(name = "NewExternalPort", stateVariable = "ExternalPort")
+                    UnsignedIntegerTwoBytes externalPort,
+            @UpnpInputArgument(name = "NewProtocol", stateVariable = "PortMappingProtocol")
+                    String protocol,
+            @UpnpInputArgument(name = "NewInternalPort", stateVariable = "InternalPort")
+                    UnsignedIntegerTwoBytes internalPort,
+            @UpnpInputArgument(name = "NewInternalClient", stateVariable = "InternalClient")
+                    String internalClient,
+            @UpnpInputArgument(name = "NewEnabled", stateVariable = "PortMappingEnabled")
+                    Boolean enabled,
+            @UpnpInputArgument(name = "NewPortMappingDescription",
+                    stateVariable = "PortMappingDescription")
+                    String description,
+            @UpnpInputArgument(name = "NewLeaseDuration",
+                    stateVariable = "PortMappingLeaseDuration")
+                    UnsignedIntegerFourBytes leaseDuration) throws ActionException {
+        settings.beforeAction("AddPortMapping");
+        PortMapping existing = getMapping(externalPort.getValue(), protocol);
+        if (existing != null && !existing.getInternalClient().equals(internalClient)) {
+            throw new ActionException(CONFLICT_IN_MAPPING_ENTRY, "ConflictInMappingEntry");
+        }
+        putMapping(new PortMapping(enabled, leaseDuration, remoteHost, externalPort,
+                internalPort, internalClient, PortMapping.Protocol.valueOf(protocol),
+                description));
+    }
+
+    @UpnpAction(name = "DeletePortMapping")
+    public void deletePortMapping(
+            @UpnpInputArgument(name = "NewRemoteHost", stateVariable = "RemoteHost")
+                    String remoteHost,
+            @UpnpInputArgument(name = "NewExternalPort", stateVariable = "ExternalPort")
+                    UnsignedIntegerTwoBytes externalPort,
+            @UpnpInputArgument(name = "NewProtocol", stateVariable = "PortMappingProtocol")
+                    String protocol) throws ActionException {
+        settings.beforeAction("DeletePortMapping");
+        if (mappings.remove(key(externalPort, protocol)) == null) {
+            throw new ActionException(NO_SUCH_ENTRY_IN_ARRAY, "NoSuchEntryInArray");
+        }
+    }
+
+    /**
+     * What GetStatusInfo returns. The connection never fails.
+     */
+    public static final class StatusInfo {
+        private final String connectionStatus;
+        private final UnsignedIntegerFourBytes uptime;
+
+        StatusInfo(String connectionStatus, UnsignedIntegerFourBytes uptime) {
+            this.connectionStatus = connectionStatus;
+            this.uptime = uptime;
+        }
+
+        public String getConnectionStatus() {
+            return connectionStatus;
+        }
+
+        public String getLastConnectionError() {
+            return "ERROR_NONE";
+        }
+
+        public UnsignedIntegerFourBytes getUptime() {
+            return uptime;
+        }
+    }
+
+    /**
+     * A mapping as GetGenericPortMappingEntry returns it, with the protocol as a string
+     */
+    public static final class GenericEntry {
+        private final PortMapping pm;
+
+        GenericEntry(PortMapping pm) {
+            this.pm = pm;
+        }
+
+        public String getRemoteHost() {
+            return pm.getRemoteHost();
+        }
+
+        public UnsignedIntegerTwoBytes getExternalPort() {
+            return pm.getExternalPort();
+        }
+
+        public String getProtocol() {
+            return pm.getProtocol().toString();
+        }
+
+        public UnsignedIntegerTwoBytes getInternalPort() {
+            return pm.getInternalPort();
+        }
+
+        public String getInternalClient() {
+            return pm.getInternalClient();
+        }
+
+        public Boolean isEnabled() {
+            return pm.isEnabled();
+        }
+
+        public String getDescription() {
+            return pm.getDescription();
+        }
+
+        public UnsignedIntegerFourBytes getLeaseDurationSeconds() {
+            return pm.getLeaseDurationSeconds();
+        }
+    }
+
+    /**
+     * @return The mapping on an external port, or null
+     */
+    PortMapping getMapping(long externalPort, String protocol) {
+        return mappings.get(protocol + ":" + externalPort);
+    }
+
+    /**
+     * Add or replace a mapping, unless the table is full
+     */
+    void putMapping(PortMapping pm) throws ActionException {
+        String key = key(pm.getExternalPort(), pm.getProtocol().toString());
+        synchronized (mappings) {
+            if (!mappings.containsKey(key) && mappings.size() >= settings.getMaxMappings()) {
+                throw new ActionException(NO_PORT_MAPS_AVAILABLE, "NoPortMapsAvailable");
+            }
+            mappings.put(key, pm);
+        }
+    }
+
+    /**
+     * @return How many mappings were removed
+     */
+    int removeMappings(long startPort, long endPort, String protocol) {
+        int removed = 0;
+        for (long port = startPort; port <= endPort; port++) {
+            if (mappings.remove(protocol + ":" + port) != null) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private static String key(UnsignedIntegerTwoBytes externalPort, String protocol) {
+        return protocol + ":" + externalPort.getValue();
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.sim;
+
+import org.fourthline.cling.UpnpService;
+import org.fourthline.cling.binding.annotations.AnnotationLocalServiceBinder;
+import org.fourthline.cling.model.DefaultServiceManager;
+import org.fourthline.cling.model.ValidationException;
+import org.fourthline.cling.model.meta.DeviceDetails;
+import org.fourthline.cling.model.meta.DeviceIdentity;
+import org.fourthline.cling.model.meta.LocalDevice;
+import org.fourthline.cling.model.meta.LocalService;
+import org.fourthline.cling.model.types.UDADeviceType;
+import org.fourthline.cling.model.types.UDN;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An InternetGatewayDevice:1, or :2 with {@link ConnectionType#IP2}, living in the local
+ * registry of a {@link UpnpService}, so the plugin can be driven without a router. Its actions
+ * run in-process, misbehaving as told by its {@link SimulationSettings}. Each gateway gets its
+ * own UDN and external IP, so any number of them can be published at once.
+ * <p>
+ * Being a local device, its actions and GENA events never go through SOAP or HTTP. The
+ * simulated latency and errors therefore don't exercise the plugin's network and decoding
+ * paths, nor Cling's own timeouts, only what the plugin does with the outcomes.
+ */
+public class SimulatedGateway {
+
+    public enum ConnectionType {
+        IP, PPP,
+        /**
+         * WANIPConnection:2 on an InternetGatewayDevice:2
+         */
+        IP2
+    }
+
+    private static final AtomicInteger count = new AtomicInteger();
+
+    private final LocalDevice device;
+    private final SimulatedConnection connection;
+    private final SimulatedWANCommonInterfaceConfig commonInterfaceConfig;
+
+    public SimulatedGateway(String name, ConnectionType connectionType,
+                            SimulationSettings settings) throws ValidationException {
+        LocalService<? extends SimulatedConnection> connectionService;
+        switch (connectionType) {
+            case PPP:
+                connectionService = bind(SimulatedWANPPPConnection.class);
+                break;
+            case IP2:
+                connectionService = bind(SimulatedWANIPConnection2.class);
+                break;
+            default:
+                connectionService = bind(SimulatedWANIPConnection.class);
+        }
+        int version = connectionType == ConnectionType.IP2 ? 2 : 1;
+        LocalService<SimulatedWANCommonInterfaceConfig> commonService =
+                bind(SimulatedWANCommonInterfaceConfig.class);
+
+        LocalDevice connectionDevice = new LocalDevice(
+                new DeviceIdentity(UDN.uniqueSystemIdentifier(name + " WANConnectionDevice")),
+                new UDADeviceType("WANConnectionDevice", version),
+                new DeviceDetails(name + " WANConnectionDevice"),
+                connectionService);
+
+        LocalDevice wanDevice = new LocalDevice(
+                new DeviceIdentity(UDN.uniqueSystemIdentifier(name + " WANDevice")),
+                new UDADeviceType("WANDevice", version),
+                new DeviceDetails(name + " WANDevice"),
+                new LocalService[]{commonService},
+                new LocalDevice[]{connectionDevice});
+
+        device = new LocalDevice(
+                new DeviceIdentity(UDN.uniqueSystemIdentifier(name)),
+                new UDADeviceType("InternetGatewayDevice", version),
+                new DeviceDetails(name),
+                new LocalService[0],
+                new LocalDevice[]{wanDevice});
+
+        connection = connectionService.getManager().getImplementation();
+        connection.setSettings(settings);
+        int n = count.getAndIncrement();
+        connection.setExternalIPAddressValue("198.18." + (n / 254 % 256) + "." + (n % 254 + 1));
+
+        commonInterfaceConfig = commonService.getManager().getImplementation();
+        commonInterfaceConfig.setSettings(settings);
+    }
+
+    /**
+     * Add the gateway to the registry, which announces it to registry listeners
+     */
+    public void publish(UpnpService upnpService) {
+        upnpService.getRegistry().addDevice(device);
+    }
+
+    /**
+     * Remove the gateway from the registry, as if it went offline
+     */
+    public void unpublish(UpnpService upnpService) {
+        upnpService.getRegistry().removeDevice(device);
+    }
+
+    public LocalDevice getDevice() {
+        return device;
+    }
+
+    public SimulatedConnection getConnection() {
+        return connection;
+    }
+
+    public SimulatedWANCommonInterfaceConfig getCommonInterfaceConfig() {
+        return commonInterfaceConfig;
+    }
+
+    /**
+     * Bind an annotated service implementation to a service of its own
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> LocalService<T> bind(Class<T> implementation) {
+        LocalService<T> service = new AnnotationLocalServiceBinder().read(implementation);
+        service.setManager(new DefaultServiceManager<>(service, implementation));
+        return service;
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.sim;
+
+import org.fourthline.cling.binding.annotations.UpnpAction;
+import org.fourthline.cling.binding.annotations.UpnpOutputArgument;
+import org.fourthline.cling.binding.annotations.UpnpService;
+import org.fourthline.cling.binding.annotations.UpnpServiceId;
+import org.fourthline.cling.binding.annotations.UpnpServiceType;
+import org.fourthline.cling.binding.annotations.UpnpStateVariable;
+import org.fourthline.cling.model.action.ActionException;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * WANCommonInterfaceConfig:1 of a simulated gateway
+ */
+@UpnpService(
+        serviceId = @UpnpServiceId("WANCommonIFC1"),
+        serviceType = @UpnpServiceType(value = "WANCommonInterfaceConfig", version = 1)
+)
+public class SimulatedWANCommonInterfaceConfig {
+
+    private SimulationSettings settings = new SimulationSettings();
+
+    @UpnpStateVariable(name = "WANAccessType", defaultValue = "Ethernet", sendEvents = false)
+    private String wanAccessType = "Ethernet";
+
+    @UpnpStateVariable(name = "Layer1UpstreamMaxBitRate", datatype = "ui4", sendEvents = false)
+    private UnsignedIntegerFourBytes layer1UpstreamMaxBitRate =
+            new UnsignedIntegerFourBytes(20000000);
+
+    @UpnpStateVariable(name = "Layer1DownstreamMaxBitRate", datatype = "ui4", sendEvents = false)
+    private UnsignedIntegerFourBytes layer1DownstreamMaxBitRate =
+            new UnsignedIntegerFourBytes(100000000);
+
+    @UpnpStateVariable(name = "PhysicalLinkStatus", defaultValue = "Up")
+    private String physicalLinkStatus = "Up";
+
+    @UpnpStateVariable(name = "TotalBytesSent", datatype = "ui4", sendEvents = false)
+    private final AtomicLong totalBytesSent = new AtomicLong();
+
+    @UpnpStateVariable(name = "TotalBytesReceived", datatype = "ui4", sendEvents = false)
+    private final AtomicLong totalBytesReceived = new AtomicLong();
+
+    void setSettings(SimulationSettings settings) {
+        this.settings = settings;
+    }
+
+    public String getWanAccessType() {
+        return wanAccessType;
+    }
+
+    public UnsignedIntegerFourBytes getLayer1UpstreamMaxBitRate() {
+        return layer1UpstreamMaxBitRate;
+    }
+
+    public UnsignedIntegerFourBytes getLayer1DownstreamMaxBitRate() {
+        return layer1DownstreamMaxBitRate;
+    }
+
+    public String getPhysicalLinkStatus() {
+        return physicalLinkStatus;
+    }
+
+    /**
+     * Count traffic over the simulated link. The counters wrap around at 4 GiB like real ones.
+     */
+    public void addTraffic(long bytesSent, long bytesReceived) {
+        totalBytesSent.addAndGet(bytesSent);
+        totalBytesReceived.addAndGet(bytesReceived);
+    }
+
+    public UnsignedIntegerFourBytes getTotalBytesSent() {
+        return new UnsignedIntegerFourBytes(totalBytesSent.get() & 0xFFFFFFFFL);
+    }
+
+    public UnsignedIntegerFourBytes getTotalBytesReceived() {
+        return new UnsignedIntegerFourBytes(totalBytesReceived.get() & 0xFFFFFFFFL);
+    }
+
+    @UpnpAction(name = "GetCommonLinkProperties", out = {
+            @UpnpOutputArgument(name = "NewWANAccessType", stateVariable = "WANAccessType",
+                    getterName = "getWanAccessType"),
+            @UpnpOutputArgument(name = "NewLayer1UpstreamMaxBitRate",
+                    stateVariable = "Layer1UpstreamMaxBitRate",
+                    getterName = "getLayer1UpstreamMaxBitRate"),
+            @UpnpOutputArgument(name = "NewLayer1DownstreamMaxBitRate",
+                    stateVariable = "Layer1DownstreamMaxBitRate",
+                    getterName = "getLayer1DownstreamMaxBitRate"),
+            @UpnpOutputArgument(name = "NewPhysicalLinkStatus",
+                    stateVariable = "PhysicalLinkStatus", getterName = "getPhysicalLinkStatus")
+    })
+    public void getCommonLinkProperties() throws ActionException {
+        settings.beforeAction("GetCommonLinkProperties");
+        // Outputs are read through the getters
+    }
+
+    @UpnpAction(name = "GetTotalBytesSent", out = @UpnpOutputArgument(name = "NewTotalBytesSent",
+            stateVariable = "TotalBytesSent", getterName = "getTotalBytesSent"))
+    public void getTotalBytesSentAction() throws ActionException {
+        settings.beforeAction("GetTotalBytesSent");
+    }
+
+    @UpnpAction(name = "GetTotalBytesReceived", out = @UpnpOutputArgument(
+            name = "NewTotalBytesReceived", stateVariable = "TotalBytesReceived",
+            getterName = "getTotalBytesReceived"))
+    public void getTotalBytesReceivedAction() throws ActionException {
+        settings.beforeAction("GetTotalBytesReceived");
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.sim;
+
+import org.fourthline.cling.binding.annotations.UpnpService;
+import org.fourthline.cling.binding.annotations.UpnpServiceId;
+import org.fourthline.cling.binding.annotations.UpnpServiceType;
+import org.fourthline.cling.binding.annotations.UpnpStateVariable;
+import org.fourthline.cling.binding.annotations.UpnpStateVariables;
+
+/**
+ * WANIPConnection:1 of a simulated gateway
+ */
+@UpnpService(
+        serviceId = @UpnpServiceId("WANIPConn1"),
+        serviceType = @UpnpServiceType(value = "WANIPConnection", version = 1)
+)
+@UpnpStateVariables({
+        @UpnpStateVariable(name = "RemoteHost", datatype = "string", sendEvents = false),
+        @UpnpStateVariable(name = "ExternalPort", datatype = "ui2", sendEvents = false),
+        @UpnpStateVariable(name = "InternalPort", datatype = "ui2", sendEvents = false),
+        @UpnpStateVariable(name = "PortMappingProtocol", datatype = "string", sendEvents = false),
+        @UpnpStateVariable(name = "InternalClient", datatype = "string", sendEvents = false),
+        @UpnpStateVariable(name = "PortMappingEnabled", datatype = "boolean", sendEvents = false),
+        @UpnpStateVariable(name = "PortMappingDescription", datatype = "string",
+                sendEvents = false),
+        @UpnpStateVariable(name = "PortMappingLeaseDuration", datatype = "ui4",
+                sendEvents = false),
+        @UpnpStateVariable(name = "LastConnectionError", datatype = "string",
+                sendEvents = false),
+        @UpnpStateVariable(name = "Uptime", datatype = "ui4", sendEvents = false),
+        @UpnpStateVariable(name = "PortMappingIndex", datatype = "ui2", sendEvents = false)
+})
+public class SimulatedWANIPConnection extends SimulatedConnection {
+}
@@ -0,0 +1,124 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package plugins.UPnP2.sim;
+
+import org.fourthline.cling.binding.annotations.UpnpAction;
+import org.fourthline.cling.binding.annotations.UpnpInputArgument;
+import org.fourthline.cling.binding.annotations.UpnpOutputArgument;
+import org.fourthline.cling.binding.annotations.UpnpService;
+import org.fourthline.cling.binding.annotations.UpnpServiceId;
+import org.fourthline.cling.binding.annotations.UpnpServiceType;
+import org.fourthline.cling.binding.annotations.UpnpStateVariable;
+import org.fourthline.cling.binding.annotations.UpnpStateVariables;
+import org.fourthline.cling.model.action.ActionException;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+import org.fourthline.cling.model.types.UnsignedIntegerTwoBytes;
+import org.fourthline.cling.support.model.PortMapping;
+
+/**
+ * WANIPConnection:2 of a simulated gateway, with the IGD:2 actions the plugin uses
+ */
+@UpnpService(
+        serviceId = @UpnpServiceId("WANIPConn1"),
+        serviceType = @UpnpServiceType(value = "WANIPConnection", version = 2)
+)
+@UpnpStateVariables({
+        @UpnpStateVariable(name = "RemoteHost", datatype = "string", sendEvents = false),
+        @UpnpStateVariable(name = "ExternalPort", datatype = "ui2", sendEvents = false),
+        @UpnpStateVariable(name = "InternalPort", datatype = "ui2", sendEvents = false),
+        @UpnpStateVariable(name = "PortMappingProtocol", datatype = "string", sendEvents = false),
+        @UpnpStateVariable(name = "InternalClient", datatype = "string", sendEvents = false),
+        @UpnpStateVariable(name = "PortMappingEnabled", datatype = "boolean", sendEvents = false),
+        @UpnpStateVariable(name = "PortMappingDescription", datatype = "string",
+                sendEvents = false),
+        @UpnpStateVariable(name = "PortMappingLeaseDuration", datatype = "ui4",
+                sendEvents = false),
+        @UpnpStateVariable(name = "LastConnectionError", datatype = "string",
+                sendEvents = false),
+        @UpnpStateVariable(name = "Uptime", datatype = "ui4", sendEvents = false),
+        @UpnpStateVariable(name = "PortMappingIndex", datatype = "ui2", sendEvents = false),
+        @UpnpStateVariable(name = "A_ARG_TYPE_Manage", datatype = "boolean", sendEvents = false)
+})
+public class SimulatedWANIPConnection2 extends SimulatedConnection {
+
+    /**
+     * UPnP error code for no mappings in a range
+     */
+    private static final int PORT_MAPPING_NOT_FOUND = 730;
+    /**
+     * UPnP error code for no free port
+     */
+    private static final int NO_PORT_MAPS_AVAILABLE = 728;
+
+    @UpnpAction(name = "AddAnyPortMapping", out = @UpnpOutputArgument(
+            name = "NewReservedPort", stateVariable = "ExternalPort"))
+    public UnsignedIntegerTwoBytes addAnyPortMapping(
+            @UpnpInputArgument(name = "NewRemoteHost", stateVariable = "RemoteHost")
+                    String remoteHost,
+            @UpnpInputArgument(name = "NewExternalPort", stateVariable = "ExternalPort")
+                    UnsignedIntegerTwoBytes externalPort,
+            @UpnpInputArgument(name = "NewProtocol", stateVariable = "PortMappingProtocol")
+                    String protocol,
+            @UpnpInputArgument(name = "NewInternalPort", stateVariable = "InternalPort")
+                    UnsignedIntegerTwoBytes internalPort,
+            @UpnpInputArgument(name = "NewInternalClient", stateVariable = "InternalClient")
+                    String internalClient,
+            @UpnpInputArgument(name = "NewEnabled", stateVariable = "PortMappingEnabled")
+                    Boolean enabled,
+            @UpnpInputArgument(name = "NewPortMappingDescription",
+                    stateVariable = "PortMappingDescription")
+                    String description,
+            @UpnpInputArgument(name = "NewLeaseDuration",
+                    stateVariable = "PortMappingLeaseDuration")
+                    UnsignedIntegerFourBytes leaseDuration) throws ActionException {
+        getSettings().beforeAction("AddAnyPortMapping");
+
+        // The requested port if it is free or already the client's, else the next such one
+        long port = externalPort.getValue();
+        for (int tries = 0; tries < 65535; tries++) {
+            PortMapping existing = getMapping(port, protocol);
+            if (existing == null || existing.getInternalClient().equals(internalClient)) {
+                UnsignedIntegerTwoBytes reserved = new UnsignedIntegerTwoBytes(port);
+                putMapping(new PortMapping(enabled, leaseDuration, remoteHost, reserved,
+                        internalPort, internalClient, PortMapping.Protocol.valueOf(protocol),
+                        description));
+                return reserved;
+            }
+            port = port == 65535 ? 1024 : port + 1;
+        }
+        throw new ActionException(NO_PORT_MAPS_AVAILABLE, "NoPortMapsAvailable");
+    }
+
+    @UpnpAction(name = "DeletePortMappingRange")
+    public void deletePortMappingRange(
+            @UpnpInputArgument(name = "NewStartPort", stateVariable = "ExternalPort")
+                    UnsignedIntegerTwoBytes startPort,
+            @UpnpInputArgument(name = "NewEndPort", stateVariable = "ExternalPort")
+                    UnsignedIntegerTwoBytes endPort,
+            @UpnpInputArgument(name = "NewProtocol", stateVariable = "PortMappingProtocol")
+                    String protocol,
+            @UpnpInputArgument(name = "NewManage", stateVariable = "A_ARG_TYPE_Manage")
+                    Boolean manage) throws ActionException {
+        getSettings().beforeAction("DeletePortMappingRange");
+        if (removeMappings(startPort.getValue(), endPort.getValue(), protocol) == 0) {
+            throw new ActionException(PORT_MAPPING_NOT_FOUND, "PortMappingNotFound");
+        }
+    }
+
+}
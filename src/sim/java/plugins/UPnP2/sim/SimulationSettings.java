@@ -0,0 +1,131 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.sim;
+
+import org.fourthline.cling.model.action.ActionException;
+import org.fourthline.cling.model.types.ErrorCode;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * How simulated gateways misbehave. Settings can be changed while the gateways are running and
+ * may be shared by many of them.
+ */
+public class SimulationSettings {
+
+    private final Random random = new Random();
+
+    private volatile long latency = 0;
+    private final ConcurrentHashMap<String, Long> actionLatencies = new ConcurrentHashMap<>();
+    private volatile double errorRate = 0;
+    private final ConcurrentHashMap<String, Double> actionErrorRates = new ConcurrentHashMap<>();
+    private volatile int maxMappings = Integer.MAX_VALUE;
+    private volatile boolean eventing = true;
+    private volatile long eventDelay = 0;
+
+    /**
+     * @param latency Milliseconds every action takes, unless set per action
+     */
+    public SimulationSettings setLatency(long latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    public SimulationSettings setLatency(String action, long latency) {
+        actionLatencies.put(action, latency);
+        return this;
+    }
+
+    /**
+     * @param errorRate Fraction of actions failing with ActionFailed, unless set per action
+     */
+    public SimulationSettings setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    public SimulationSettings setErrorRate(String action, double errorRate) {
+        actionErrorRates.put(action, errorRate);
+        return this;
+    }
+
+    /**
+     * @param maxMappings Size of the mapping table, beyond which AddPortMapping fails
+     */
+    public SimulationSettings setMaxMappings(int maxMappings) {
+        this.maxMappings = maxMappings;
+        return this;
+    }
+
+    /**
+     * @param eventing Whether changes of evented state variables are sent to subscribers
+     */
+    public SimulationSettings setEventing(boolean eventing) {
+        this.eventing = eventing;
+        return this;
+    }
+
+    /**
+     * @param eventDelay Milliseconds between a state change and its event
+     */
+    public SimulationSettings setEventDelay(long eventDelay) {
+        this.eventDelay = eventDelay;
+        return this;
+    }
+
+    public int getMaxMappings() {
+        return maxMappings;
+    }
+
+    public boolean isEventing() {
+        return eventing;
+    }
+
+    public long getEventDelay() {
+        return eventDelay;
+    }
+
+    /**
+     * Called at the start of every simulated action. Waits for the action's latency and fails
+     * it at its error rate.
+     */
+    void beforeAction(String action) throws ActionException {
+        Long actionLatency = actionLatencies.get(action);
+        long millis = actionLatency != null ? actionLatency : latency;
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ActionException(ErrorCode.ACTION_FAILED, "Interrupted");
+            }
+        }
+
+        Double actionErrorRate = actionErrorRates.get(action);
+        double rate = actionErrorRate != null ? actionErrorRate : errorRate;
+        boolean fail;
+        synchronized (random) {
+            fail = rate > 0 && random.nextDouble() < rate;
+        }
+        if (fail) {
+            throw new ActionException(ErrorCode.ACTION_FAILED, "Injected failure of " + action);
+        }
+    }
+
+}